@@ -0,0 +1,25 @@
+package org.xedox.apkbuilder;
+
+import android.content.Context;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** aapt2 from the app's native libraries, assets from the app's APK. */
+public class AndroidBuildEnvironment implements BuildEnvironment {
+    private final Context context;
+
+    public AndroidBuildEnvironment(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public File aapt2Binary() {
+        return new File(context.getApplicationInfo().nativeLibraryDir, "libaapt2.so");
+    }
+
+    @Override
+    public InputStream openAsset(String name) throws IOException {
+        return context.getAssets().open(name);
+    }
+}
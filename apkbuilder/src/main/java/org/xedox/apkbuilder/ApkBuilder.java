@@ -1,16 +1,16 @@
 package org.xedox.apkbuilder;
 
-import android.content.Context;
-import android.content.res.AssetManager;
 import java.io.File;
 import java.io.PrintStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import org.xedox.apkbuilder.task.AlignTask;
+import java.util.TreeMap;
 import org.xedox.apkbuilder.task.CleanTask;
 import org.xedox.apkbuilder.task.CompileResourcesTask;
 import org.xedox.apkbuilder.task.LinkResourcesTask;
@@ -18,10 +18,14 @@ import org.xedox.apkbuilder.task.CompileSourcesTask;
 import org.xedox.apkbuilder.task.DexingClassesTask;
 import org.xedox.apkbuilder.task.OptimizeTask;
 import org.xedox.apkbuilder.task.PackageResourcesTask;
-import org.xedox.apkbuilder.task.SignTask;
 import org.xedox.apkbuilder.util.BinaryUtils;
+import org.xedox.apkbuilder.util.BuildProfiler;
 import org.xedox.apkbuilder.util.TaskManager;
 import org.xedox.apkbuilder.util.BuildException;
+import org.xedox.apkbuilder.util.BuildState;
+import org.xedox.apkbuilder.util.LibraryDexCache;
+import org.xedox.apkbuilder.util.SourceMap;
+import org.xedox.apkbuilder.util.TaskIO;
 import org.xedox.javac.JavacOptionsBuilder;
 
 public class ApkBuilder {
@@ -35,17 +39,24 @@ public class ApkBuilder {
     public File outputApk;
     public File classesDir;
     public File dexDir;
-    public Context context;
+    public File baseApk;
+    public File optimizedApk;
+    public File signedApk;
+    public BuildState buildState;
+    public LibraryDexCache libraryCache;
+    /** Every compiled class by internal name, handed from the compiler to the dexer. */
+    public Map<String, byte[]> classes;
+    public final BuildEnvironment environment;
     public static final Object keyCopyLock = new Object();
     
+    private final List<TaskManager.Node> preparationTasks = new ArrayList<>();
     private BuildListener buildListener;
     private volatile boolean stopRequested = false;
 
-    public ApkBuilder(Context context, PrintStream printStream) {
-        this.context = context;
+    public ApkBuilder(BuildEnvironment environment, PrintStream printStream) {
+        this.environment = Objects.requireNonNull(environment);
         this.taskManager = new TaskManager(Objects.requireNonNull(printStream));
-        String nativeDir = context.getApplicationInfo().nativeLibraryDir;
-        aapt2Binary = new File(nativeDir, "libaapt2.so");
+        aapt2Binary = environment.aapt2Binary();
     }
 
     public interface BuildListener {
@@ -70,6 +81,14 @@ public class ApkBuilder {
         return stopRequested;
     }
 
+    /**
+     * Forgets an earlier stop request. The builder is reused, so the caller clears it when it
+     * accepts a new build, before any work a stop could interrupt.
+     */
+    public void clearStopRequest() {
+        stopRequested = false;
+    }
+
     public void build(BuildConfig config) {
         this.config = config;
         debugCommands = config.debugMode;
@@ -79,10 +98,29 @@ public class ApkBuilder {
         this.outputApk = new File(genDir, "resources.ap_");
         this.classesDir = new File(config.buildPath, "classes");
         this.dexDir = new File(config.buildPath, "dex");
+        this.baseApk = new File(config.buildPath, "base.apk");
+        this.optimizedApk = new File(config.buildPath, "intermediates/resources-optimized.ap_");
+        this.signedApk = new File(config.buildPath, "signed_base.apk");
+        this.buildState =
+                config.incremental
+                        ? BuildState.load(new File(config.buildPath, BuildState.FILE_NAME))
+                        : null;
+        this.classes = null;
+        this.libraryCache =
+                new LibraryDexCache(
+                        config.libraryDexCacheDir != null
+                                ? new File(config.libraryDexCacheDir)
+                                : new File(config.buildPath, "intermediates/predexed"));
         if (buildListener != null) {
             buildListener.onBuildStarted();
         }
 
+        // Read before the clean task may delete the build directory
+        File historyFile = new File(config.buildPath, BuildProfiler.FILE_NAME);
+        List<BuildProfiler.Build> history = BuildProfiler.load(historyFile);
+        BuildProfiler profiler = BuildProfiler.start();
+        profiler.setToolchain(aapt2Binary, new File(config.androidJarPath));
+        boolean success = false;
         try {
             validateBuildEnvironment();
             taskManager.task(
@@ -91,52 +129,137 @@ public class ApkBuilder {
                         taskManager.start();
                         if (isStopRequested()) return;
 
-                        executeTask("Cleaning build directory...", new CleanTask(this), 10);
-                        if (isStopRequested()) return;
-
-                        executeTask("Compiling resources with ECJ...", new CompileResourcesTask(this), 20);
-                        if (isStopRequested()) return;
-
-                        executeTask("Linking resources with aapt2...", new LinkResourcesTask(this), 30);
-                        if (isStopRequested()) return;
-
-                        executeTask("Compiling sources with aapt2...", new CompileSourcesTask(this), 40);
-                        if (isStopRequested()) return;
-
-                        executeTask("Dexing classes with D8...", new DexingClassesTask(this), 50);
-                        if (isStopRequested()) return;
-
-                        executeTask("Packing resources...", new PackageResourcesTask(this), 60);
-                        if (isStopRequested()) return;
+                        taskManager.graph(createTaskGraph(), this::isStopRequested);
 
-                        executeTask("Optimize apk with aapt2...", new OptimizeTask(this), 70);
-                        if (isStopRequested()) return;
-
-                        executeTask("Aligning apk with zip-align...", new AlignTask(this), 80);
-                        if (isStopRequested()) return;
-
-                        executeTask("Apk signing...", new SignTask(this), 90);
-                        
                         if (!isStopRequested() && buildListener != null) {
                             buildListener.onBuildCompleted(true, "Build completed successfully");
                         }
                     });
+            success = !isStopRequested();
         } catch (Exception err) {
-            err.printStackTrace(taskManager.getPrintStream());
+            taskManager.error("Build failed: " + err.getMessage(), err);
             if (buildListener != null) {
                 buildListener.onBuildError(err.getMessage());
                 buildListener.onBuildCompleted(false, "Build failed: " + err.getMessage());
             }
+        } finally {
+            saveBuildState();
+            preparationTasks.clear();
         }
 
         taskManager.printStatistics();
+        BuildProfiler.Build build = profiler.finish(success, taskManager.getUpToDateCount());
+        reportProfile(build, history, historyFile);
+    }
+
+    private void reportProfile(
+            BuildProfiler.Build build, List<BuildProfiler.Build> history, File historyFile) {
+        if (taskManager.isVerbose()) {
+            for (String line : BuildProfiler.report(build, history)) {
+                taskManager.log(line);
+            }
+        } else {
+            for (String line : BuildProfiler.regressions(build, history)) {
+                taskManager.warn(line);
+            }
+        }
+        try {
+            BuildProfiler.save(historyFile, history, build);
+        } catch (Exception err) {
+            taskManager.warn("Failed to save build history: " + err.getMessage());
+        }
+        taskManager.flush();
     }
 
-    private void executeTask(String name, TaskManager.Task task, int progress) throws Exception {
+    private List<TaskManager.Node> createTaskGraph() {
+        List<TaskManager.Node> nodes = new ArrayList<>();
+        TaskManager.Node clean = node("Cleaning build directory...", new CleanTask(this), 10);
+        nodes.add(clean);
+        TaskManager.Node compile =
+                node("Compiling sources with ECJ...", new CompileSourcesTask(this), 40);
+        for (TaskManager.Node preparation : preparationTasks) {
+            TaskManager.Node node = node(preparation.name, preparation.task, 15).after(clean);
+            nodes.add(node);
+            // Preparation may hand sources over in memory, without a file edge
+            compile.after(node);
+        }
+        nodes.add(node("Compiling resources with aapt2...", new CompileResourcesTask(this), 20));
+        nodes.add(node("Linking resources with aapt2...", new LinkResourcesTask(this), 30));
+        nodes.add(compile);
+        nodes.add(node("Dexing classes with D8...", new DexingClassesTask(this), 50));
+        nodes.add(node("Optimize resources with aapt2...", new OptimizeTask(this), 55));
+        nodes.add(node("Packaging APK...", new PackageResourcesTask(this), 90));
+        for (TaskManager.Node node : nodes) {
+            if (node != clean) node.after(clean);
+        }
+        return nodes;
+    }
+
+    private TaskManager.Node node(String name, TaskManager.Task task, int progress) {
+        TaskIO io = new TaskIO();
+        task.declare(io);
+        return new TaskManager.Node(name, () -> executeTask(name, task, io, progress), io);
+    }
+
+    /**
+     * Adds a task that prepares build inputs (sources, manifest) for the next build. It runs
+     * concurrently with every build task that does not consume its declared outputs.
+     */
+    public void addPreparationTask(String name, TaskManager.Task task) {
+        TaskIO io = new TaskIO();
+        task.declare(io);
+        preparationTasks.add(new TaskManager.Node(name, task, io));
+    }
+
+    private boolean isPrepared(String path) {
+        if (path == null) return false;
+        File file = new File(path);
+        for (TaskManager.Node task : preparationTasks) {
+            for (File output : task.io.getOutputs()) {
+                if (output.getAbsoluteFile().equals(file.getAbsoluteFile())) return true;
+            }
+        }
+        return false;
+    }
+
+    private void executeTask(String name, TaskManager.Task task, TaskIO io, int progress)
+            throws Exception {
         if (buildListener != null) {
             buildListener.onBuildProgress(name, progress);
         }
+        taskManager.progress(name, progress);
+        if (buildState == null || !io.isDeclared()) {
+            taskManager.task(name, task);
+            return;
+        }
+        String key = name;
+        String inputs = buildState.inputsFingerprint(io);
+        if (buildState.isUpToDate(key, inputs, io)) {
+            taskManager.skip(name);
+            return;
+        }
+        buildState.invalidate(key);
         taskManager.task(name, task);
+        buildState.record(key, inputs, io);
+    }
+
+    private void saveBuildState() {
+        if (buildState == null) return;
+        try {
+            buildState.save();
+        } catch (Exception err) {
+            taskManager.warn("Failed to save build state: " + err.getMessage());
+        }
+    }
+
+    /** Linked resources that go into the APK, optimized when aapt2 optimize is enabled. */
+    public File resourcesApk() {
+        return config.aapt2OptimizeEnable ? optimizedApk : outputApk;
+    }
+
+    /** The APK written by the packaging task, signed when signing is enabled. */
+    public File finalApk() {
+        return config.apkSignEnable ? signedApk : baseApk;
     }
 
     private void validateBuildEnvironment() throws Exception {
@@ -146,13 +269,17 @@ public class ApkBuilder {
         if (config.nativeLibsDir != null)
             validateDirectory(config.nativeLibsDir, "Native libs directory");
         validateFile(new File(config.androidJarPath), "android.jar");
-        validateFile(new File(config.manifestPath), "AndroidManifest.xml");
+        for (String library : config.libraries) {
+            validateFile(new File(library), "Library");
+        }
+        if (!isPrepared(config.manifestPath))
+            validateFile(new File(config.manifestPath), "AndroidManifest.xml");
 
-        if (config.javaSources.isEmpty()) {
+        if (config.javaSources.isEmpty() && preparationTasks.isEmpty()) {
             throw new BuildException("No Java sources specified");
         }
         for (String sourcePath : config.javaSources) {
-            validateDirectory(sourcePath, "Java source directory");
+            if (!isPrepared(sourcePath)) validateDirectory(sourcePath, "Java source directory");
         }
 
         createDirectory(classesDir, "Classes directory");
@@ -197,8 +324,10 @@ public class ApkBuilder {
         public String nativeLibsDir;
         public String desugarJdkLibsPath;
         public String proguardRulesPath;
+        public String libraryDexCacheDir;
 
         public boolean debugMode = true;
+        public boolean incremental = true;
         public boolean r8enabled = false;
         public boolean apkAlignEnable = true;
         public boolean apkSignEnable = true;
@@ -206,6 +335,11 @@ public class ApkBuilder {
 
         public final JavacOptionsBuilder java = JavacOptionsBuilder.create();
         public final List<String> javaSources = new ArrayList<>();
+        /** Generated sources that are compiled from memory, path to contents. */
+        public final Map<String, String> memorySources = new TreeMap<>();
+        /** Maps of memory sources generated from other files, by the same path. */
+        public final Map<String, SourceMap> sourceMaps = new HashMap<>();
+        public final List<String> libraries = new ArrayList<>();
         public final KeyConfig keyConfig = new KeyConfig();
 
         public static class KeyConfig {
@@ -0,0 +1,592 @@
+package org.xedox.apkbuilder;
+
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSources;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+import org.xedox.apkbuilder.util.BuildProfiler;
+import org.xedox.apkbuilder.util.DeflateCache;
+import org.xedox.apkbuilder.util.TaskManager;
+import org.xedox.apkbuilder.util.WorkerPool;
+
+/**
+ * Writes an APK in a single pass. Entries of an existing archive (resources.ap_) are copied
+ * with their compressed data as is, new entries are compressed once (in parallel for
+ * {@link #addAll}, media and archives not at all, unchanged files reused from a
+ * {@link DeflateCache}), stored entries are aligned while the local headers are written, and
+ * the optional signer engine sees every entry on the way out. The APK signing block is
+ * inserted before the central directory at the end, so the file is never rewritten.
+ */
+public class ApkWriter implements Closeable {
+    public static final int ALIGNMENT = 4;
+    public static final int PAGE_ALIGNMENT = 16384;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR = 0x06054b50;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    // 1980-01-01 00:00, keeps the output reproducible
+    private static final int DOS_TIME = 0;
+    private static final int DOS_DATE = (1 << 5) | 1;
+    private static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+    /** Entries compressed ahead of the one being written. */
+    private static final int WINDOW = TaskManager.getParallelism() * 4;
+    /** aapt's default no-compress list, plus formats that are compressed containers. */
+    public static final Set<String> NO_COMPRESS_EXTENSIONS =
+            Set.of(
+                    "jpg", "jpeg", "png", "gif", "webp", "wav", "mp2", "mp3", "ogg", "aac",
+                    "mpg", "mpeg", "mid", "midi", "smf", "jet", "rtttl", "imy", "xmf", "mp4",
+                    "m4a", "m4v", "3gp", "3gpp", "3g2", "3gpp2", "amr", "awb", "wma", "wmv",
+                    "webm", "mkv", "zip", "jar", "gz", "woff", "woff2");
+
+    private static final WorkerPool workers =
+            new WorkerPool("ZipWorker", TaskManager.getParallelism());
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ApkSignerEngine signer;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private boolean alignEnabled = true;
+    private DeflateCache deflateCache;
+    private ApkSignerEngine.InspectJarEntryRequest inspection;
+    private boolean finished;
+
+    private static class Entry {
+        String name;
+        int flags;
+        int method;
+        int time = DOS_TIME;
+        int date = DOS_DATE;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+        // Position of the data in the source archive, for raw copies
+        long dataOffset;
+    }
+
+    /** @param signer engine that signs the APK, or null for an unsigned APK */
+    public ApkWriter(File output, ApkSignerEngine signer) throws IOException {
+        Files.deleteIfExists(output.toPath());
+        output.getAbsoluteFile().getParentFile().mkdirs();
+        this.file = new RandomAccessFile(output, "rw");
+        this.channel = file.getChannel();
+        this.signer = signer;
+    }
+
+    public ApkWriter setAlignEnabled(boolean alignEnabled) {
+        this.alignEnabled = alignEnabled;
+        return this;
+    }
+
+    /** Reuses the compressed data of files deflated by an earlier build in {@link #addAll}. */
+    public ApkWriter setDeflateCache(DeflateCache deflateCache) {
+        this.deflateCache = deflateCache;
+        return this;
+    }
+
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /** Copies every entry of an archive without recompressing it. */
+    public void copyFrom(File archive) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(archive, "r")) {
+            FileChannel source = in.getChannel();
+            for (Entry entry : readCentralDirectory(source, archive)) {
+                if (!names.add(entry.name)) {
+                    continue;
+                }
+                ByteBuffer local = read(source, entry.offset, 30);
+                if (local.getInt(0) != LOCAL_HEADER) {
+                    throw new ZipException("Bad local header of " + entry.name + " in " + archive);
+                }
+                long dataOffset =
+                        entry.offset + 30 + (local.getShort(26) & 0xffff)
+                                + (local.getShort(28) & 0xffff);
+                entry.dataOffset = dataOffset;
+                entry.flags &= ~FLAG_DATA_DESCRIPTOR;
+
+                writeLocalHeader(entry);
+                long position = 0;
+                while (position < entry.compressedSize) {
+                    position +=
+                            source.transferTo(
+                                    dataOffset + position,
+                                    entry.compressedSize - position,
+                                    channel);
+                }
+                BuildProfiler.read(entry.compressedSize);
+
+                DataSink inspector = inspect(entry.name);
+                if (inspector != null) {
+                    try (InputStream data = uncompressed(source, entry)) {
+                        byte[] buffer = new byte[65536];
+                        int read;
+                        while ((read = data.read(buffer)) != -1) {
+                            inspector.consume(buffer, 0, read);
+                        }
+                    }
+                    inspected();
+                }
+            }
+        }
+    }
+
+    public void add(String name, File source, boolean compress) throws IOException {
+        add(name, readFile(source), compress);
+    }
+
+    public void add(String name, byte[] data, boolean compress) throws IOException {
+        if (!names.add(name)) {
+            throw new ZipException("Duplicate APK entry: " + name);
+        }
+        write(prepare(name, data, compress));
+    }
+
+    /**
+     * Adds the files in the given order. Reading, checksumming and deflating run on a worker
+     * pool a bounded number of entries ahead, while the entries before them are written.
+     */
+    public void addAll(List<Source> sources) throws IOException {
+        ExecutorService pool = workers.get();
+        Deque<Future<Prepared>> ahead = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < sources.size() || !ahead.isEmpty()) {
+                while (next < sources.size() && ahead.size() < WINDOW) {
+                    Source source = sources.get(next++);
+                    if (!names.add(source.name)) {
+                        throw new ZipException("Duplicate APK entry: " + source.name);
+                    }
+                    ahead.add(pool.submit(() -> prepare(source)));
+                }
+                write(await(ahead.poll()));
+            }
+        } finally {
+            for (Future<Prepared> future : ahead) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /** A file for {@link #addAll}. */
+    public static class Source {
+        public final String name;
+        public final File file;
+        public final boolean compress;
+
+        public Source(String name, File file, boolean compress) {
+            this.name = name;
+            this.file = file;
+            this.compress = compress;
+        }
+    }
+
+    /**
+     * An entry checksummed and compressed, ready to be written. Entries taken from the deflate
+     * cache have no data; it is read from the file only if the v1 signer asks for it.
+     */
+    private static class Prepared {
+        final String name;
+        final byte[] data;
+        final File file;
+        final byte[] stored;
+        final int method;
+        final long crc;
+        final long size;
+
+        Prepared(
+                String name,
+                byte[] data,
+                File file,
+                byte[] stored,
+                int method,
+                long crc,
+                long size) {
+            this.name = name;
+            this.data = data;
+            this.file = file;
+            this.stored = stored;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    /** Media and archives are stored: deflate would not shrink them, only cost time. */
+    public static boolean isCompressed(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return false;
+        }
+        return NO_COMPRESS_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static Prepared prepare(String name, byte[] data, boolean compress)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        byte[] stored = data;
+        int method = STORED;
+        if (compress && !isCompressed(name)) {
+            byte[] deflated = deflate(data);
+            if (deflated.length < data.length) {
+                stored = deflated;
+                method = DEFLATED;
+            }
+        }
+        return new Prepared(name, data, null, stored, method, crc.getValue(), data.length);
+    }
+
+    private Prepared prepare(Source source) throws IOException {
+        if (deflateCache == null || !source.compress || isCompressed(source.name)) {
+            return prepare(source.name, readFile(source.file), source.compress);
+        }
+        String key = deflateCache.key(source.file, LEVEL);
+        DeflateCache.Payload cached = deflateCache.get(key);
+        if (cached != null && cached.deflated != null) {
+            return new Prepared(
+                    source.name, null, source.file, cached.deflated, DEFLATED, cached.crc,
+                    cached.size);
+        }
+        byte[] data = readFile(source.file);
+        if (cached != null) {
+            // Known not to shrink, skip deflating it again
+            return new Prepared(source.name, data, null, data, STORED, cached.crc, data.length);
+        }
+        Prepared prepared = prepare(source.name, data, true);
+        deflateCache.put(
+                key,
+                new DeflateCache.Payload(
+                        prepared.crc,
+                        data.length,
+                        prepared.method == DEFLATED ? prepared.stored : null));
+        return prepared;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        BuildProfiler.read(data.length);
+        return data;
+    }
+
+    private void write(Prepared prepared) throws IOException {
+        Entry entry = new Entry();
+        entry.name = prepared.name;
+        entry.method = prepared.method;
+        entry.crc = prepared.crc;
+        entry.size = prepared.size;
+        entry.compressedSize = prepared.stored.length;
+        writeLocalHeader(entry);
+        writeFully(ByteBuffer.wrap(prepared.stored));
+
+        DataSink inspector = inspect(prepared.name);
+        if (inspector != null) {
+            byte[] data = prepared.data != null ? prepared.data : readFile(prepared.file);
+            inspector.consume(data, 0, data.length);
+            inspected();
+        }
+    }
+
+    private static Prepared await(Future<Prepared> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing APK entries");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to compress APK entry", cause);
+        }
+    }
+
+    /** Writes the v1 signature entries, the APK signing block and the central directory. */
+    public void finish() throws Exception {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (signer != null) {
+            ApkSignerEngine.OutputJarSignatureRequest jarSignature = signer.outputJarEntries();
+            if (jarSignature != null) {
+                for (ApkSignerEngine.OutputJarSignatureRequest.JarEntry entry :
+                        jarSignature.getAdditionalJarEntries()) {
+                    add(entry.getName(), entry.getData(), true);
+                }
+                jarSignature.done();
+            }
+        }
+
+        long entriesEnd = channel.position();
+        byte[] centralDirectory = centralDirectory();
+        ByteBuffer eocd = endOfCentralDirectory(entriesEnd, centralDirectory.length);
+        long centralDirectoryOffset = entriesEnd;
+
+        if (signer != null) {
+            ApkSignerEngine.OutputApkSigningBlockRequest2 request =
+                    signer.outputZipSections2(
+                            // Mapped, so the digest workers read without sharing the channel
+                            DataSources.asDataSource(
+                                    channel.map(FileChannel.MapMode.READ_ONLY, 0, entriesEnd)),
+                            DataSources.asDataSource(ByteBuffer.wrap(centralDirectory)),
+                            DataSources.asDataSource(eocd.duplicate()));
+            if (request != null) {
+                int padding = request.getPaddingSizeBeforeApkSigningBlock();
+                byte[] block = request.getApkSigningBlock();
+                channel.position(entriesEnd);
+                writeFully(ByteBuffer.allocate(padding));
+                writeFully(ByteBuffer.wrap(block));
+                centralDirectoryOffset = entriesEnd + padding + block.length;
+                eocd.putInt(16, (int) centralDirectoryOffset);
+                request.done();
+            }
+        }
+
+        channel.position(centralDirectoryOffset);
+        writeFully(ByteBuffer.wrap(centralDirectory));
+        writeFully(eocd);
+        channel.truncate(channel.position());
+        BuildProfiler.written(channel.position());
+        if (signer != null) {
+            signer.outputDone();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (signer != null) {
+                signer.close();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Sink for the uncompressed data of an entry when the v1 signer needs to digest it. */
+    private DataSink inspect(String name) {
+        if (signer == null) {
+            return null;
+        }
+        inspection = signer.outputJarEntry(name);
+        return inspection != null ? inspection.getDataSink() : null;
+    }
+
+    private void inspected() {
+        inspection.done();
+        inspection = null;
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        if (name.length != entry.name.length()) {
+            entry.flags |= FLAG_UTF8;
+        }
+        entry.offset = channel.position();
+        if (entry.offset > 0xffffffffL) {
+            throw new ZipException("APK is larger than 4 GB");
+        }
+        int padding = 0;
+        if (entry.method == STORED && alignEnabled) {
+            int alignment = entry.name.endsWith(".so") ? PAGE_ALIGNMENT : ALIGNMENT;
+            long dataStart = entry.offset + 30 + name.length;
+            padding = (int) ((alignment - dataStart % alignment) % alignment);
+        }
+        ByteBuffer header = ByteBuffer.allocate(30 + name.length + padding);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short) (entry.method == DEFLATED ? 20 : 10));
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putShort((short) entry.time);
+        header.putShort((short) entry.date);
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) name.length);
+        header.putShort((short) padding);
+        header.put(name);
+        header.position(header.capacity());
+        header.flip();
+        writeFully(header);
+        entries.add(entry);
+    }
+
+    private byte[] centralDirectory() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(46 + name.length);
+            record.order(ByteOrder.LITTLE_ENDIAN);
+            record.putInt(CENTRAL_HEADER);
+            record.putShort((short) 20);
+            record.putShort((short) (entry.method == DEFLATED ? 20 : 10));
+            record.putShort((short) entry.flags);
+            record.putShort((short) entry.method);
+            record.putShort((short) entry.time);
+            record.putShort((short) entry.date);
+            record.putInt((int) entry.crc);
+            record.putInt((int) entry.compressedSize);
+            record.putInt((int) entry.size);
+            record.putShort((short) name.length);
+            record.putShort((short) 0);
+            record.putShort((short) 0);
+            record.putShort((short) 0);
+            record.putShort((short) 0);
+            record.putInt(0);
+            record.putInt((int) entry.offset);
+            record.put(name);
+            out.write(record.array(), 0, record.capacity());
+        }
+        return out.toByteArray();
+    }
+
+    private ByteBuffer endOfCentralDirectory(long offset, int size) throws ZipException {
+        if (entries.size() > 0xffff) {
+            throw new ZipException("Too many APK entries: " + entries.size());
+        }
+        ByteBuffer eocd = ByteBuffer.allocate(22);
+        eocd.order(ByteOrder.LITTLE_ENDIAN);
+        eocd.putInt(END_OF_CENTRAL_DIR);
+        eocd.putShort((short) 0);
+        eocd.putShort((short) 0);
+        eocd.putShort((short) entries.size());
+        eocd.putShort((short) entries.size());
+        eocd.putInt(size);
+        eocd.putInt((int) offset);
+        eocd.putShort((short) 0);
+        eocd.flip();
+        return eocd;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        Deflater deflater = new Deflater(LEVEL, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater, 65536)) {
+            stream.write(data);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static InputStream uncompressed(FileChannel source, Entry entry)
+            throws IOException {
+        ByteBuffer data = read(source, entry.dataOffset, (int) entry.compressedSize);
+        InputStream raw = new ByteArrayInputStream(data.array(), 0, data.limit());
+        if (entry.method == STORED) {
+            return raw;
+        }
+        // The trailing zero byte lets the inflater see the end of a raw deflate stream
+        return new InflaterInputStream(
+                new SequenceInputStream(raw, new ByteArrayInputStream(new byte[1])),
+                new Inflater(true),
+                65536);
+    }
+
+    private static List<Entry> readCentralDirectory(FileChannel source, File archive)
+            throws IOException {
+        long size = source.size();
+        int tail = (int) Math.min(size, 22 + 0xffff);
+        ByteBuffer buffer = read(source, size - tail, tail);
+        int eocd = -1;
+        for (int i = tail - 22; i >= 0; i--) {
+            if (buffer.getInt(i) == END_OF_CENTRAL_DIR) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("Not a zip archive: " + archive);
+        }
+        int count = buffer.getShort(eocd + 10) & 0xffff;
+        long cdSize = buffer.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = buffer.getInt(eocd + 16) & 0xffffffffL;
+        ByteBuffer cd = read(source, cdOffset, (int) cdSize);
+
+        List<Entry> result = new ArrayList<>(count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (cd.getInt(position) != CENTRAL_HEADER) {
+                throw new ZipException("Bad central directory in " + archive);
+            }
+            Entry entry = new Entry();
+            entry.flags = cd.getShort(position + 8) & 0xffff;
+            entry.method = cd.getShort(position + 10) & 0xffff;
+            entry.time = cd.getShort(position + 12) & 0xffff;
+            entry.date = cd.getShort(position + 14) & 0xffff;
+            entry.crc = cd.getInt(position + 16) & 0xffffffffL;
+            entry.compressedSize = cd.getInt(position + 20) & 0xffffffffL;
+            entry.size = cd.getInt(position + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(position + 28) & 0xffff;
+            int extraLength = cd.getShort(position + 30) & 0xffff;
+            int commentLength = cd.getShort(position + 32) & 0xffff;
+            entry.offset = cd.getInt(position + 42) & 0xffffffffL;
+            byte[] name = new byte[nameLength];
+            cd.position(position + 46);
+            cd.get(name);
+            entry.name = new String(name, StandardCharsets.UTF_8);
+            position += 46 + nameLength + extraLength + commentLength;
+            if (!entry.name.endsWith("/")) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private static ByteBuffer read(FileChannel source, long offset, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,18 @@
+package org.xedox.apkbuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * What a build needs from the machine it runs on: the toolchain binaries and the bundled
+ * assets (debug keystore, test key). The app provides them from its APK, the desktop runner
+ * from host paths.
+ */
+public interface BuildEnvironment {
+
+    File aapt2Binary();
+
+    /** Opens a bundled asset such as debug.keystore or testkey.pk8. */
+    InputStream openAsset(String name) throws IOException;
+}
@@ -0,0 +1,46 @@
+package org.xedox.apkbuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** A desktop JVM: a host aapt2 binary and assets read from a directory. */
+public class HostBuildEnvironment implements BuildEnvironment {
+    private final File aapt2;
+    private final File assetsDir;
+
+    public HostBuildEnvironment(File aapt2, File assetsDir) {
+        this.aapt2 = aapt2;
+        this.assetsDir = assetsDir;
+    }
+
+    @Override
+    public File aapt2Binary() {
+        return aapt2;
+    }
+
+    @Override
+    public InputStream openAsset(String name) throws IOException {
+        if (assetsDir == null) {
+            throw new FileNotFoundException("No assets directory for " + name);
+        }
+        return new FileInputStream(new File(assetsDir, name));
+    }
+
+    /** The first aapt2 on the PATH, null when there is none. */
+    public static File findAapt2() {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            File file = new File(dir, "aapt2");
+            if (file.isFile() && file.canExecute()) {
+                return file;
+            }
+        }
+        return null;
+    }
+}
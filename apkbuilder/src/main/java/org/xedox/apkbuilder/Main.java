@@ -0,0 +1,157 @@
+package org.xedox.apkbuilder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import org.xedox.apkbuilder.util.Aapt2Daemon;
+import org.xedox.apkbuilder.util.ApkbuilderProperties;
+import org.xedox.apkbuilder.util.BuildProfiler;
+
+/**
+ * Runs the build pipeline on a desktop JVM with a host aapt2, e.g. to measure build times in
+ * batch mode without a device.
+ *
+ * <pre>
+ * apkbuilder [--aapt2 file] [--assets dir] [--repeat n] [--clean] [--quiet] build.properties
+ * </pre>
+ *
+ * Exits with 1 when a build fails and 2 on bad arguments.
+ */
+public class Main {
+    private static final String USAGE =
+            "usage: apkbuilder [--aapt2 file] [--assets dir] [--repeat n] [--clean] [--quiet]"
+                    + " build.properties\n"
+                    + "  --aapt2   aapt2 binary, default: aapt2 on the PATH\n"
+                    + "  --assets  directory with debug.keystore or testkey.pk8/testkey.x509.pem\n"
+                    + "  --repeat  run the build n times and print the build times\n"
+                    + "  --clean   non-incremental builds\n"
+                    + "  --quiet   only print the build times and failures";
+
+    public static void main(String... args) {
+        int status;
+        try {
+            status = run(args);
+        } finally {
+            Aapt2Daemon.shutdown();
+        }
+        System.exit(status);
+    }
+
+    static int run(String... args) {
+        File aapt2 = null;
+        File assets = null;
+        File properties = null;
+        int repeat = 1;
+        boolean clean = false;
+        boolean quiet = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--aapt2":
+                        aapt2 = new File(args[++i]);
+                        break;
+                    case "--assets":
+                        assets = new File(args[++i]);
+                        break;
+                    case "--repeat":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+                    case "--clean":
+                        clean = true;
+                        break;
+                    case "--quiet":
+                        quiet = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("-") || properties != null) {
+                            return usage("Unknown argument: " + args[i]);
+                        }
+                        properties = new File(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return usage("Bad arguments: " + String.join(" ", args));
+        }
+        if (properties == null) {
+            return usage(null);
+        }
+        if (!properties.isFile()) {
+            return usage("No such file: " + properties);
+        }
+        if (aapt2 == null) {
+            aapt2 = HostBuildEnvironment.findAapt2();
+            if (aapt2 == null) {
+                return usage("aapt2 not found on the PATH, pass --aapt2");
+            }
+        }
+
+        ApkBuilder builder =
+                new ApkBuilder(
+                        new HostBuildEnvironment(aapt2, assets),
+                        quiet ? new PrintStream(OutputStream.nullOutputStream()) : System.out);
+        Result result = new Result();
+        builder.setBuildListener(result);
+
+        long[] times = new long[repeat];
+        for (int i = 0; i < repeat; i++) {
+            ApkBuilder.BuildConfig config = ApkbuilderProperties.loadFromFile(properties);
+            if (clean) {
+                config.incremental = false;
+            }
+            result.success = false;
+            long start = System.nanoTime();
+            builder.build(config);
+            times[i] = System.nanoTime() - start;
+            if (repeat > 1 || quiet) {
+                System.out.println(
+                        "Build " + (i + 1) + ": " + BuildProfiler.formatNanos(times[i])
+                                + (result.success ? "" : " FAILED " + result.error));
+            }
+            if (!result.success) {
+                return 1;
+            }
+        }
+        if (repeat > 1) {
+            long[] sorted = times.clone();
+            Arrays.sort(sorted);
+            System.out.println(
+                    "min " + BuildProfiler.formatNanos(sorted[0])
+                            + ", median " + BuildProfiler.formatNanos(sorted[repeat / 2])
+                            + ", max " + BuildProfiler.formatNanos(sorted[repeat - 1]));
+        }
+        return 0;
+    }
+
+    private static int usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println(USAGE);
+        return 2;
+    }
+
+    private static class Result implements ApkBuilder.BuildListener {
+        volatile boolean success;
+        volatile String error;
+
+        @Override
+        public void onBuildStarted() {}
+
+        @Override
+        public void onBuildProgress(String taskName, int progress) {}
+
+        @Override
+        public void onBuildCompleted(boolean success, String message) {
+            this.success = success;
+            if (!success) {
+                error = message;
+            }
+        }
+
+        @Override
+        public void onBuildError(String error) {
+            this.error = error;
+        }
+    }
+}
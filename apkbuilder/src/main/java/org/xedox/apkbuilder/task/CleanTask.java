@@ -19,6 +19,10 @@ public class CleanTask implements TaskManager.Task {
 
     @Override
     public void run() throws Exception {
+        if (builder.config.incremental) {
+            builder.taskManager.debug("Incremental build, keeping build directory");
+            return;
+        }
         File buildDir = new File(builder.config.buildPath);
 
         if (!buildDir.exists()) {
@@ -29,7 +33,7 @@ public class CleanTask implements TaskManager.Task {
         Files.createDirectories(buildDir.toPath());
     }
 
-    private void deleteDirectory(File directory) throws BuildException {
+    public static void deleteDirectory(File directory) throws BuildException {
         File[] files = directory.listFiles();
         if (files != null) {
             for (File file : files) {
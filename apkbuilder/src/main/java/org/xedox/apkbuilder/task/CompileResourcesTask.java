@@ -2,43 +2,167 @@ package org.xedox.apkbuilder.task;
 
 import org.xedox.apkbuilder.ApkBuilder;
 import org.xedox.javac.OptionsBuilder;
-import org.xedox.apkbuilder.util.BinaryUtils;
+import org.xedox.apkbuilder.util.Aapt2Daemon;
+import org.xedox.apkbuilder.util.BuildState;
+import org.xedox.apkbuilder.util.TaskIO;
 import org.xedox.apkbuilder.util.TaskManager;
 import org.xedox.apkbuilder.util.BuildException;
 import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.stream.Collectors;
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.model.ZipParameters;
-import com.android.tools.r8.D8;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
 
 public class CompileResourcesTask implements TaskManager.Task {
+    /** Files per aapt2 process, keeps the command line well below the argument limit. */
+    private static final int BATCH_SIZE = 64;
+    private static final String MANIFEST = "res-manifest";
+
     private final ApkBuilder builder;
 
     public CompileResourcesTask(ApkBuilder builder) {
         this.builder = builder;
     }
 
+    @Override
+    public void declare(TaskIO io) {
+        io.input(builder.config.resDir)
+                .input(builder.aapt2Binary)
+                .output(builder.compiledResDir);
+    }
+
+    /**
+     * Compiles only the res files whose hash changed since the last build. The hashes are kept
+     * in a manifest under intermediates; flats of removed res files are deleted.
+     */
     @Override
     public void run() throws Exception {
+        File resDir = new File(builder.config.resDir);
+        // Kept outside compiled_res so the link step only fingerprints the .flat files
+        File manifestFile = new File(builder.config.buildPath, "intermediates/" + MANIFEST);
+
+        Map<String, File> resFiles = new TreeMap<>();
+        collectResFiles(resDir, "", resFiles);
+        Map<String, String> hashes = new TreeMap<>();
+        for (Map.Entry<String, File> entry : resFiles.entrySet()) {
+            File file = entry.getValue();
+            String hash =
+                    builder.buildState != null
+                            ? builder.buildState.fileHash(file)
+                            : BuildState.hash(file);
+            hashes.put(entry.getKey(), hash);
+        }
+        String aapt2 = builder.aapt2Binary.length() + ":" + builder.aapt2Binary.lastModified();
+
+        Properties manifest = new Properties();
+        if (builder.config.incremental && manifestFile.exists()) {
+            try (InputStream in = new FileInputStream(manifestFile)) {
+                manifest.load(in);
+            }
+        }
+        if (!aapt2.equals(manifest.getProperty(MANIFEST + ".aapt2"))) {
+            if (builder.compiledResDir.exists()) {
+                CleanTask.deleteDirectory(builder.compiledResDir);
+            }
+            manifest.clear();
+        }
         builder.compiledResDir.mkdirs();
+
+        for (String path : manifest.stringPropertyNames()) {
+            if (!path.startsWith(MANIFEST) && !hashes.containsKey(path)) {
+                new File(builder.compiledResDir, flatName(path)).delete();
+                manifest.remove(path);
+            }
+        }
+
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            String path = entry.getKey();
+            boolean compiled = new File(builder.compiledResDir, flatName(path)).exists();
+            if (!compiled || !entry.getValue().equals(manifest.getProperty(path))) {
+                changed.add(path);
+            }
+        }
+        builder.taskManager.debug(
+                () -> "Resources: " + (hashes.size() - changed.size()) + " unchanged, "
+                        + changed.size() + " to compile");
+
+        manifestFile.getParentFile().mkdirs();
+        try {
+            for (int i = 0; i < changed.size(); i += BATCH_SIZE) {
+                List<String> batch = changed.subList(i, Math.min(i + BATCH_SIZE, changed.size()));
+                compile(batch, resFiles);
+                for (String path : batch) {
+                    manifest.setProperty(path, hashes.get(path));
+                }
+            }
+        } finally {
+            manifest.setProperty(MANIFEST + ".aapt2", aapt2);
+            try (OutputStream out = new FileOutputStream(manifestFile)) {
+                manifest.store(out, "Compiled resources");
+            }
+        }
+    }
+
+    private void compile(List<String> batch, Map<String, File> resFiles) throws Exception {
         OptionsBuilder opt = new OptionsBuilder();
-        opt.arg(builder.aapt2Binary.getAbsolutePath());
         opt.arg("compile");
-        opt.arg("--dir", builder.config.resDir);
         opt.arg("-o", builder.compiledResDir.getAbsolutePath());
+        for (String path : batch) {
+            File flat = new File(builder.compiledResDir, flatName(path));
+            flat.delete();
+            opt.arg(resFiles.get(path).getAbsolutePath());
+        }
 
         if (builder.debugCommands) {
-            builder.taskManager.debug("Using options: " + opt.buildCmd());
+            builder.taskManager.debug(() -> "Using options: " + opt.buildCmd());
+        }
+
+        String output = Aapt2Daemon.get(builder.aapt2Binary).execute(opt.build());
+        if (output != null && output.length() != 0) {
+            builder.taskManager.debug(() -> "aapt2 compile output: " + output);
         }
+        for (String path : batch) {
+            if (!new File(builder.compiledResDir, flatName(path)).exists()) {
+                throw new BuildException("aapt2 failed to compile " + path + "\n" + output);
+            }
+        }
+    }
+
+    private static void collectResFiles(File dir, String prefix, Map<String, File> into) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.getName().startsWith(".")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                collectResFiles(child, prefix + child.getName() + "/", into);
+            } else if (!prefix.isEmpty()) {
+                into.put(prefix + child.getName(), child);
+            }
+        }
+    }
 
-        String output = BinaryUtils.execute(opt.build());
-        if(output!= null && output.length() != 0) {
-            builder.taskManager.debug("aapt2 compile output: " + output);
+    /**
+     * Name aapt2 gives the compiled file: values/strings.xml becomes values_strings.arsc.flat,
+     * any other file such as drawable-hdpi/icon.png becomes drawable-hdpi_icon.png.flat.
+     */
+    static String flatName(String path) {
+        int slash = path.indexOf('/');
+        String dir = path.substring(0, slash);
+        String name = path.substring(slash + 1);
+        if (dir.equals("values") || dir.startsWith("values-")) {
+            int dot = name.lastIndexOf('.');
+            return dir + "_" + (dot > 0 ? name.substring(0, dot) : name) + ".arsc.flat";
         }
-        
+        return dir + "_" + name + ".flat";
     }
-}
\ No newline at end of file
+}
@@ -3,10 +3,14 @@ package org.xedox.apkbuilder.task;
 import org.xedox.apkbuilder.ApkBuilder;
 import java.io.File;
 import org.xedox.apkbuilder.util.BuildException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.xedox.apkbuilder.util.BuildProfiler;
+import org.xedox.apkbuilder.util.BuildState;
+import org.xedox.apkbuilder.util.SourceMap;
+import org.xedox.apkbuilder.util.TaskIO;
 import org.xedox.apkbuilder.util.TaskManager;
-import org.xedox.javac.JavaCompiler;
-import org.xedox.javac.JavacOptionsBuilder;
+import org.xedox.javac.CompilerService;
 
 public class CompileSourcesTask implements TaskManager.Task {
     private final ApkBuilder builder;
@@ -15,36 +19,95 @@ public class CompileSourcesTask implements TaskManager.Task {
         this.builder = builder;
     }
 
+    @Override
+    public void declare(TaskIO io) {
+        for (String sourcePath : builder.config.javaSources) {
+            io.input(sourcePath);
+        }
+        io.input(rJavaFile())
+                .input(builder.config.androidJarPath)
+                .inputs(builder.config.libraries)
+                .property("javaVersion", builder.config.javaVersion)
+                .property("debugInfo", builder.config.debugMode)
+                .lazyProperty("memorySources", this::memorySourcesHash)
+                .output(builder.classesDir);
+    }
+
     @Override
     public void run() throws Exception {
-        File rJavaFile = new File(builder.genDir, builder.config.appPackage.replace('.', '/') + "/R.java");
+        File rJavaFile = rJavaFile();
         if (!rJavaFile.exists()) {
             throw new BuildException("R.java not found at: " + rJavaFile.getAbsolutePath());
         }
+        File stateFile = new File(builder.config.buildPath, "intermediates/javac.state");
+        if (!builder.config.incremental || !stateFile.exists()) {
+            if (builder.classesDir.exists()) {
+                CleanTask.deleteDirectory(builder.classesDir);
+            }
+            stateFile.delete();
+        }
+        builder.classesDir.mkdirs();
 
-        PrintWriter outWriter = new PrintWriter(builder.taskManager.getPrintStream());
-        PrintWriter errWriter = new PrintWriter(builder.taskManager.getPrintStream());
-        JavaCompiler javac = new JavaCompiler(outWriter, errWriter);
-
-        JavacOptionsBuilder mainOptions =
-                JavacOptionsBuilder.create()
-                        .destination(builder.classesDir.getAbsolutePath())
+        CompilerService.Request request =
+                CompilerService.Request.create()
+                        .destination(builder.classesDir)
                         .classpath(builder.config.androidJarPath)
-                        .option("-proc:none")
-                        .target(builder.config.javaVersion)
-                        .source(builder.config.javaVersion);
-
+                        .version(builder.config.javaVersion)
+                        .debugInfo(builder.config.debugMode);
+        if (builder.config.incremental) {
+            request.incremental(stateFile);
+        }
+        for (String library : builder.config.libraries) {
+            File classesJar = builder.libraryCache.classesJar(new File(library));
+            request.classpath(classesJar.getAbsolutePath());
+        }
         for (String sourcePath : builder.config.javaSources) {
-            mainOptions.addSrc(sourcePath);
+            request.source(sourcePath);
         }
-        mainOptions.addSrc(rJavaFile.getAbsolutePath());
-
-        if (builder.debugCommands) {
-            builder.taskManager.debug("Using options: " + mainOptions.buildCmd());
+        for (Map.Entry<String, String> source : builder.config.memorySources.entrySet()) {
+            request.source(source.getKey(), source.getValue());
         }
+        request.source(rJavaFile.getAbsolutePath());
 
-        if (!javac.compile(mainOptions.build())) {
+        CompilerService.Result result = CompilerService.get().compile(request);
+        BuildProfiler.record("ecj parse", result.parseTime * 1_000_000L);
+        BuildProfiler.record("ecj resolve", result.resolveTime * 1_000_000L);
+        BuildProfiler.record("ecj analyze", result.analyzeTime * 1_000_000L);
+        BuildProfiler.record("ecj generate", result.generateTime * 1_000_000L);
+        BuildProfiler.read(result.bytesRead);
+        BuildProfiler.written(result.bytesWritten);
+        for (CompilerService.Problem problem : result.problems) {
+            SourceMap map = builder.config.sourceMaps.get(problem.file);
+            if (map != null && map.line(problem.line) > 0) {
+                builder.taskManager.diagnostic(
+                        problem.error,
+                        map.file(problem.line),
+                        map.line(problem.line),
+                        map.column(problem.line, problem.column),
+                        problem.message);
+            } else {
+                builder.taskManager.diagnostic(
+                        problem.error, problem.file, problem.line, problem.column, problem.message);
+            }
+        }
+        if (!result.isSuccess()) {
             throw new BuildException("Main sources compilation failed");
         }
+        builder.classes = result.outputClasses;
+        builder.taskManager.debug(
+                () -> "Compiled " + result.compiledUnits.size() + " units, "
+                        + result.classes.size() + " classes");
+    }
+
+    private String memorySourcesHash() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> source : builder.config.memorySources.entrySet()) {
+            sb.append(source.getKey()).append('\0').append(source.getValue()).append('\0');
+        }
+        return BuildState.hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File rJavaFile() {
+        return new File(builder.genDir, builder.config.appPackage.replace('.', '/') + "/R.java");
     }
 }
@@ -1,10 +1,13 @@
 package org.xedox.apkbuilder.task;
 
 import org.xedox.apkbuilder.ApkBuilder;
+import org.xedox.apkbuilder.util.BuildProfiler;
+import org.xedox.apkbuilder.util.BuildState;
+import org.xedox.apkbuilder.util.ClassFileHeader;
+import org.xedox.apkbuilder.util.DexingEngine;
+import org.xedox.apkbuilder.util.LibraryDexCache;
+import org.xedox.apkbuilder.util.TaskIO;
 import org.xedox.apkbuilder.util.TaskManager;
-import org.xedox.javac.OptionsBuilder;
-import com.android.tools.r8.D8;
-import com.android.tools.r8.R8;
 
 import java.io.File;
 import java.io.IOException;
@@ -13,127 +16,377 @@ import java.nio.file.Paths;
 import java.util.List;
 import java.nio.file.Files;
 import java.util.stream.Collectors;
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
-import java.io.PrintStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
 
 public class DexingClassesTask implements TaskManager.Task {
     private final ApkBuilder builder;
+    private final DexingEngine engine = DexingEngine.get();
     private boolean fallbackToD8 = false;
 
     public DexingClassesTask(ApkBuilder builder) {
         this.builder = builder;
     }
 
+    @Override
+    public void declare(TaskIO io) {
+        io.input(builder.classesDir)
+                .input(builder.config.androidJarPath)
+                .input(builder.config.desugarJdkLibsPath)
+                .input(builder.config.proguardRulesPath)
+                .inputs(builder.config.libraries)
+                .property("r8enabled", builder.config.r8enabled)
+                .property("minSdk", builder.config.minSdk)
+                .property("d8", DexingEngine.version())
+                .output(builder.dexDir);
+    }
+
     @Override
     public void run() throws Exception {
+        if (builder.dexDir.exists()) {
+            CleanTask.deleteDirectory(builder.dexDir);
+        }
         builder.dexDir.mkdirs();
-        Path classesDirPath = builder.classesDir.toPath();
-        Path androidJar = Paths.get(builder.config.androidJarPath);
-
-        List<Path> classFiles =
-                Files.walk(classesDirPath)
-                        .filter(Files::isRegularFile)
-                        .filter(p -> p.toString().endsWith(".class"))
-                        .collect(Collectors.toList());
-
-        if (classFiles.isEmpty()) {
+        Map<String, byte[]> classes = builder.classes;
+        if (classes == null) {
+            classes = readClasses(builder.classesDir.toPath());
+        }
+        if (classes.isEmpty()) {
             throw new IOException("No .class files found for dexing");
         }
 
-        boolean useR8 = builder.config.r8enabled && !fallbackToD8;
-        builder.taskManager.debug("Using " + (useR8 ? "R8" : "D8") + " for dexing...");
+        predexLibraries();
 
-        OptionsBuilder options =
-                new OptionsBuilder()
-                        .arg("--output", builder.dexDir.toString())
-                        .arg("--min-api", "21")
-                        .arg("--lib", androidJar.toString());
+        boolean useR8 = builder.config.r8enabled && !fallbackToD8;
+        builder.taskManager.debug(() -> "Using " + (useR8 ? "R8" : "D8") + " for dexing...");
 
         if (useR8) {
             try {
-                options.arg("--release")
-                        .arg("--classpath", androidJar.toString())
-                        .arg("--no-desugaring");
-
-                if (builder.config.proguardRulesPath != null) {
-                    options.arg("--pg-conf", builder.config.proguardRulesPath);
-                }
-                File tempJar = createJar(classFiles, classesDirPath);
-                options.arg(tempJar.getAbsolutePath());
-
-                executeTool(options, true);
-
-                if (!hasDexFiles()) {
-                    throw new IOException("R8 failed to produce dex files");
-                }
+                shrink(classes);
             } catch (Exception e) {
                 builder.taskManager.error("R8 failed, falling back to D8: " + e.getMessage());
                 fallbackToD8 = true;
                 run();
             }
         } else {
-            if (builder.config.desugarJdkLibsPath != null) {
-                options.arg("--classpath", builder.config.desugarJdkLibsPath);
-            }
+            dexIncrementally(classes);
+        }
+    }
 
-            classFiles.forEach(p -> options.arg(p.toString()));
+    /** Class files of the classes dir, used when compilation did not run in this build. */
+    private static Map<String, byte[]> readClasses(Path classesDir) throws IOException {
+        Map<String, byte[]> classes = new TreeMap<>();
+        try (Stream<Path> walk = Files.walk(classesDir)) {
+            List<Path> classFiles =
+                    walk.filter(Files::isRegularFile)
+                            .filter(p -> p.toString().endsWith(".class"))
+                            .collect(Collectors.toList());
+            for (Path classFile : classFiles) {
+                classes.put(internalName(classesDir, classFile), Files.readAllBytes(classFile));
+            }
+        }
+        return classes;
+    }
 
-            executeTool(options, false);
+    private void shrink(Map<String, byte[]> classes) throws Exception {
+        Map<String, byte[]> program = new TreeMap<>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith("java/")
+                    && !name.startsWith("javax/")
+                    && !name.startsWith("android/")) {
+                program.put(name, entry.getValue());
+            }
+        }
+        List<Path> rules = new ArrayList<>();
+        if (builder.config.proguardRulesPath != null) {
+            rules.add(Paths.get(builder.config.proguardRulesPath));
+        }
+        DexingEngine.Diagnostics diagnostics = new DexingEngine.Diagnostics();
+        try {
+            List<byte[]> dex =
+                    engine.shrink(program, rules, request().release().noDesugaring(), diagnostics);
+            if (dex.isEmpty()) {
+                throw new IOException("R8 failed to produce dex files");
+            }
+            writeDex(dex, builder.dexDir);
+        } finally {
+            report(diagnostics);
         }
     }
 
-    private File createJar(List<Path> classFiles, Path baseDir) throws IOException {
-        File tempJar = File.createTempFile("classes", ".jar");
-        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(tempJar))) {
-            for (Path classFile : classFiles) {
-                String relativePath =
-                        baseDir.relativize(classFile)
-                                .toString()
-                                .replace('\\', '/')
-                                .replace(".class", "")
-                                .replace("/", ".");
-                if (!relativePath.startsWith("java.")
-                        && !relativePath.startsWith("javax.")
-                        && !relativePath.startsWith("android.")) {
-                    String entryName = baseDir.relativize(classFile).toString().replace('\\', '/');
-                    zos.putNextEntry(new ZipEntry(entryName));
-                    zos.write(Files.readAllBytes(classFile));
-                    zos.closeEntry();
+    /**
+     * Dexes classes through a per-class cache. Classes are grouped by their top-level class
+     * (nest members share bridges) and every group is keyed by the hash of its class files and
+     * of its program supertypes (interface desugaring copies default methods into subclasses).
+     * Only groups without a cached intermediate dex go through D8; the cached files are then
+     * merged into the final classes*.dex.
+     */
+    private void dexIncrementally(Map<String, byte[]> classes) throws Exception {
+        File cacheDir =
+                new File(
+                        builder.config.buildPath,
+                        "intermediates/dex-cache/api" + builder.config.minSdk);
+        cacheDir.mkdirs();
+
+        Map<String, List<String>> groups = new TreeMap<>();
+        Map<String, String> groupOfClass = new HashMap<>();
+        for (String internalName : classes.keySet()) {
+            String group = topLevelName(internalName);
+            groups.computeIfAbsent(group, k -> new ArrayList<>()).add(internalName);
+            groupOfClass.put(internalName, group);
+        }
+
+        Map<String, String> contentHashes = new HashMap<>();
+        Map<String, Set<String>> superGroups = new HashMap<>();
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            StringBuilder content = new StringBuilder();
+            Set<String> supers = new TreeSet<>();
+            Collections.sort(group.getValue());
+            for (String internalName : group.getValue()) {
+                byte[] bytes = classes.get(internalName);
+                content.append(internalName)
+                        .append(':')
+                        .append(BuildState.hash(bytes))
+                        .append('\n');
+                for (String supertype : ClassFileHeader.read(bytes).getSupertypes()) {
+                    String superGroup = groupOfClass.get(supertype);
+                    if (superGroup != null && !superGroup.equals(group.getKey())) {
+                        supers.add(superGroup);
+                    }
                 }
             }
+            contentHashes.put(group.getKey(), content.toString());
+            superGroups.put(group.getKey(), supers);
+        }
+
+        Map<String, String> keys = new HashMap<>();
+        for (String group : groups.keySet()) {
+            groupKey(group, contentHashes, superGroups, keys, new HashSet<>());
         }
-        return tempJar;
-    }
 
-    private void executeTool(OptionsBuilder options, boolean isR8) throws Exception {
-        String[] args = options.build();
-        builder.taskManager.debug("Using options: " + String.join(" ", args));
+        List<String> missing = new ArrayList<>();
+        for (String group : groups.keySet()) {
+            if (!new File(cacheDir, keys.get(group)).isDirectory()) {
+                missing.add(group);
+            }
+        }
+        builder.taskManager.debug(
+                () -> "Dex cache: " + (groups.size() - missing.size()) + " cached, "
+                        + missing.size() + " to dex");
 
-        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        if (!missing.isEmpty()) {
+            dexGroups(missing, groups, keys, cacheDir, classes);
+        }
 
-        PrintStream originalErr = System.err;
+        List<Path> dexFiles = new ArrayList<>();
+        Set<String> used = new HashSet<>(keys.values());
+        for (String group : groups.keySet()) {
+            try (Stream<Path> walk = Files.walk(new File(cacheDir, keys.get(group)).toPath())) {
+                walk.filter(p -> p.toString().endsWith(".dex")).forEach(dexFiles::add);
+            }
+        }
 
+        DexingEngine.Diagnostics diagnostics = new DexingEngine.Diagnostics();
         try {
-            
-            if (isR8) {
-                R8.main(args);
-            } else {
-                D8.main(args);
+            writeDex(engine.dex(dexFiles, request(), diagnostics), builder.dexDir);
+        } finally {
+            report(diagnostics);
+        }
+
+        File[] entries = cacheDir.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                if (!used.contains(entry.getName())) {
+                    CleanTask.deleteDirectory(entry);
+                }
+            }
+        }
+    }
+
+    private void dexGroups(
+            List<String> missing,
+            Map<String, List<String>> groups,
+            Map<String, String> keys,
+            File cacheDir,
+            Map<String, byte[]> classes)
+            throws Exception {
+        Map<String, byte[]> program = new TreeMap<>();
+        for (String group : missing) {
+            for (String internalName : groups.get(group)) {
+                program.put(internalName, classes.get(internalName));
             }
+        }
+        Map<String, byte[]> rest = new HashMap<>(classes);
+        rest.keySet().removeAll(program.keySet());
+
+        DexingEngine.Request request = request().classpath(DexingEngine.memory(rest));
+        if (builder.config.desugarJdkLibsPath != null) {
+            request.classpath(engine.archive(new File(builder.config.desugarJdkLibsPath)));
+        }
+        DexingEngine.Diagnostics diagnostics = new DexingEngine.Diagnostics();
+        Map<String, byte[]> dex;
+        try {
+            dex = engine.dexPerClass(program, request, diagnostics);
         } finally {
-            System.setErr(originalErr);
+            report(diagnostics);
+        }
 
-            if (!errors.toString().isEmpty()) {
-                builder.taskManager.debug((isR8 ? "R8" : "D8") + ": " + errors);
+        for (String group : missing) {
+            File groupDir = new File(cacheDir, "." + keys.get(group));
+            if (groupDir.exists()) {
+                CleanTask.deleteDirectory(groupDir);
+            }
+            for (String internalName : groups.get(group)) {
+                byte[] bytes = dex.get(internalName);
+                if (bytes != null) {
+                    File target = new File(groupDir, internalName + ".dex");
+                    target.getParentFile().mkdirs();
+                    Files.write(target.toPath(), bytes);
+                    BuildProfiler.written(bytes.length);
+                }
+            }
+            groupDir.mkdirs();
+            Files.move(groupDir.toPath(), new File(cacheDir, keys.get(group)).toPath());
+        }
+    }
+
+    /**
+     * Makes sure every configured library is in the pre-dexed store. Libraries are the same for
+     * every project, so each one is dexed once per content hash and min SDK and then packaged
+     * as it is.
+     */
+    public List<File> predexLibraries() throws Exception {
+        List<File> dexFiles = new ArrayList<>();
+        for (String path : builder.config.libraries) {
+            File library = new File(path);
+            LibraryDexCache.Dexer dexer =
+                    (classesJar, outputDir) -> {
+                        builder.taskManager.log("Pre-dexing " + library.getName());
+                        DexingEngine.Diagnostics diagnostics = new DexingEngine.Diagnostics();
+                        try {
+                            List<byte[]> dex =
+                                    engine.dex(
+                                            List.of(classesJar.toPath()),
+                                            request(library).release(),
+                                            diagnostics);
+                            writeDex(dex, outputDir);
+                        } finally {
+                            report(diagnostics);
+                        }
+                    };
+            dexFiles.addAll(
+                    builder.libraryCache.ensureDexed(library, variant(builder, library), dexer));
+        }
+        return dexFiles;
+    }
+
+    /**
+     * Names the stored dex of a library after everything besides the library that D8's output
+     * depends on, so a new dexer or android.jar never packages stale dex files.
+     */
+    public static String variant(ApkBuilder builder, File library) throws IOException {
+        LibraryDexCache cache = builder.libraryCache;
+        StringBuilder key = new StringBuilder(DexingEngine.version());
+        key.append('|').append(cache.shortHash(new File(builder.config.androidJarPath)));
+        if (Integer.parseInt(builder.config.minSdk) < 24) {
+            // Default and static interface methods are desugared against the classpath
+            for (String path : builder.config.libraries) {
+                File other = new File(path);
+                if (!other.equals(library)) {
+                    key.append('|').append(cache.shortHash(other));
+                }
             }
         }
+        String hash = BuildState.hash(key.toString().getBytes(StandardCharsets.UTF_8));
+        return "api" + builder.config.minSdk + "-" + hash.substring(0, 8);
+    }
+
+    private DexingEngine.Request request() throws IOException {
+        return request(null);
+    }
+
+    /**
+     * Min API, android.jar as library and the configured libraries as classpath, except the
+     * library being dexed: a class must not be both program and classpath input.
+     */
+    private DexingEngine.Request request(File program) throws IOException {
+        DexingEngine.Request request =
+                new DexingEngine.Request(builder.config.minSdk)
+                        .library(engine.archive(new File(builder.config.androidJarPath)));
+        for (String path : builder.config.libraries) {
+            File library = new File(path);
+            if (!library.equals(program)) {
+                request.classpath(engine.archive(builder.libraryCache.classesJar(library)));
+            }
+        }
+        return request;
+    }
+
+    private void report(DexingEngine.Diagnostics diagnostics) {
+        for (DexingEngine.Diagnostics.Message message : diagnostics.messages) {
+            switch (message.level) {
+                case ERROR:
+                    builder.taskManager.error(message.toString());
+                    break;
+                case WARNING:
+                    builder.taskManager.warn(message.toString());
+                    break;
+                default:
+                    builder.taskManager.debug(message::toString);
+            }
+        }
+    }
+
+    private static void writeDex(List<byte[]> dex, File dir) throws IOException {
+        dir.mkdirs();
+        for (int i = 0; i < dex.size(); i++) {
+            String name = i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex";
+            Files.write(new File(dir, name).toPath(), dex.get(i));
+            BuildProfiler.written(dex.get(i).length);
+        }
+    }
+
+    private static String groupKey(
+            String group,
+            Map<String, String> contentHashes,
+            Map<String, Set<String>> superGroups,
+            Map<String, String> keys,
+            Set<String> visiting) {
+        String key = keys.get(group);
+        if (key != null) {
+            return key;
+        }
+        visiting.add(group);
+        StringBuilder data = new StringBuilder(contentHashes.get(group));
+        for (String superGroup : superGroups.get(group)) {
+            if (!visiting.contains(superGroup)) {
+                data.append(groupKey(superGroup, contentHashes, superGroups, keys, visiting))
+                        .append('\n');
+            }
+        }
+        visiting.remove(group);
+        key = BuildState.hash(data.toString().getBytes(StandardCharsets.UTF_8));
+        keys.put(group, key);
+        return key;
+    }
+
+    private static String internalName(Path classesDir, Path classFile) {
+        String relative = classesDir.relativize(classFile).toString().replace('\\', '/');
+        return relative.substring(0, relative.length() - ".class".length());
     }
 
-    private boolean hasDexFiles() {
-        File[] dexFiles = builder.dexDir.listFiles((dir, name) -> name.endsWith(".dex"));
-        return dexFiles != null && dexFiles.length > 0;
+    private static String topLevelName(String internalName) {
+        int slash = internalName.lastIndexOf('/');
+        int dollar = internalName.indexOf('$', slash + 1);
+        return dollar > 0 ? internalName.substring(0, dollar) : internalName;
     }
 }
@@ -2,10 +2,14 @@ package org.xedox.apkbuilder.task;
 
 import org.xedox.apkbuilder.ApkBuilder;
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import org.xedox.apkbuilder.util.BuildException;
+import org.xedox.apkbuilder.util.TaskIO;
 import org.xedox.apkbuilder.util.TaskManager;
 import org.xedox.javac.OptionsBuilder;
-import org.xedox.apkbuilder.util.BinaryUtils;
+import org.xedox.apkbuilder.util.Aapt2Daemon;
 
 public class LinkResourcesTask implements TaskManager.Task {
     private final ApkBuilder builder;
@@ -14,18 +18,48 @@ public class LinkResourcesTask implements TaskManager.Task {
         this.builder = builder;
     }
 
+    @Override
+    public void declare(TaskIO io) {
+        io.input(builder.compiledResDir)
+                .input(builder.config.manifestPath)
+                .input(builder.config.androidJarPath)
+                .input(builder.aapt2Binary)
+                .property("packageId", builder.config.packageId)
+                .property("versionCode", builder.config.versionCode)
+                .property("versionName", builder.config.versionName)
+                .property("minSdk", builder.config.minSdk)
+                .property("targetSdk", builder.config.targetSdk)
+                .property("appPackage", builder.config.appPackage)
+                .output(builder.genDir);
+    }
+
+    /**
+     * Links into intermediates/link and then moves the results into gen. Generated sources are
+     * only copied over when their content changed, so R.java keeps its timestamp and the java
+     * compiler does not see a change when only a resource value was edited. The whole task is
+     * skipped by the build state when the flats, the manifest and the config are the same.
+     */
     @Override
     public void run() throws Exception {
+        File linkDir = new File(builder.config.buildPath, "intermediates/link");
+        if (linkDir.exists()) {
+            CleanTask.deleteDirectory(linkDir);
+        }
+        File javaDir = new File(linkDir, "java");
+        File linkedApk = new File(linkDir, builder.outputApk.getName());
+        javaDir.mkdirs();
         File[] flatFiles = builder.compiledResDir.listFiles((dir, name) -> name.endsWith(".flat"));
-        builder.genDir.mkdirs();
+        if (flatFiles == null) {
+            throw new BuildException("No compiled resources in " + builder.compiledResDir);
+        }
+        Arrays.sort(flatFiles);
         OptionsBuilder opt = new OptionsBuilder();
-        opt.arg(builder.aapt2Binary.getAbsolutePath());
         opt.arg("link");
         for (File flatFile : flatFiles) {
             opt.arg(flatFile.getAbsolutePath());
         }
-        opt.arg("-o", builder.outputApk.getAbsolutePath());
-        opt.arg("--java", builder.genDir.getAbsolutePath());
+        opt.arg("-o", linkedApk.getAbsolutePath());
+        opt.arg("--java", javaDir.getAbsolutePath());
         opt.arg("-I", builder.config.androidJarPath);
         opt.arg("--manifest", builder.config.manifestPath);
         opt.arg("--package-id", builder.config.packageId);
@@ -36,15 +70,66 @@ public class LinkResourcesTask implements TaskManager.Task {
         opt.arg("--rename-manifest-package", builder.config.appPackage);
 
         if (builder.debugCommands) {
-            builder.taskManager.debug("Using options: " + opt.buildCmd());
+            builder.taskManager.debug(() -> "Using options: " + opt.buildCmd());
         }
 
-        String output = BinaryUtils.execute(opt.build());
+        String output = Aapt2Daemon.get(builder.aapt2Binary).execute(opt.build());
         if (output != null && output.length() != 0) {
-            builder.taskManager.debug("aapt2 link output: " + output);
+            builder.taskManager.debug(() -> "aapt2 link output: " + output);
         }
-        if (!builder.outputApk.exists()) {
+        if (!linkedApk.exists()) {
             throw new BuildException("Output APK not created");
         }
+
+        builder.genDir.mkdirs();
+        Files.move(
+                linkedApk.toPath(),
+                builder.outputApk.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        int updated = syncDirectory(javaDir, builder.genDir, builder.outputApk);
+        builder.taskManager.debug(() -> "Generated sources updated: " + updated);
+    }
+
+    /** Mirrors from into to, rewriting only files whose content differs. */
+    private static int syncDirectory(File from, File to, File keep) throws Exception {
+        int updated = 0;
+        File[] existing = to.listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                if (!file.equals(keep) && !new File(from, file.getName()).exists()) {
+                    if (file.isDirectory()) {
+                        CleanTask.deleteDirectory(file);
+                    } else {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        File[] files = from.listFiles();
+        if (files == null) {
+            return updated;
+        }
+        for (File file : files) {
+            File target = new File(to, file.getName());
+            if (file.isDirectory()) {
+                if (target.isFile()) {
+                    target.delete();
+                }
+                target.mkdirs();
+                updated += syncDirectory(file, target, null);
+            } else if (target.isDirectory()
+                    || !target.exists()
+                    || file.length() != target.length()
+                    || !Arrays.equals(
+                            Files.readAllBytes(file.toPath()),
+                            Files.readAllBytes(target.toPath()))) {
+                if (target.isDirectory()) {
+                    CleanTask.deleteDirectory(target);
+                }
+                Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                updated++;
+            }
+        }
+        return updated;
     }
 }
@@ -1,10 +1,9 @@
 package org.xedox.apkbuilder.task;
 
 import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import org.xedox.apkbuilder.ApkBuilder;
-import org.xedox.apkbuilder.util.BinaryUtils;
+import org.xedox.apkbuilder.util.Aapt2Daemon;
+import org.xedox.apkbuilder.util.TaskIO;
 import org.xedox.apkbuilder.util.TaskManager;
 import org.xedox.javac.OptionsBuilder;
 
@@ -16,17 +15,32 @@ public class OptimizeTask implements TaskManager.Task {
         this.builder = builder;
     }
 
+    @Override
+    public void declare(TaskIO io) {
+        if (builder.config.aapt2OptimizeEnable) {
+            io.input(builder.outputApk).input(builder.aapt2Binary).output(builder.optimizedApk);
+        }
+    }
+
     @Override
     public void run() throws Exception {
-        File baseApk = new File(builder.config.buildPath, "base.apk");
-        File outputApk = new File(builder.config.buildPath, "base_optimized.apk");
+        if (!builder.config.aapt2OptimizeEnable) {
+            builder.taskManager.debug("aapt2 optimize disabled, skipping...");
+            return;
+        }
+        // Runs on the linked resources only, the packaging task takes the result as it is
+        File baseApk = builder.outputApk;
+        File outputApk = builder.optimizedApk;
+        outputApk.getParentFile().mkdirs();
         // aapt2 optimize -o output.apk --enable-sparse-encoding input.apk
         OptionsBuilder opt = new OptionsBuilder();
-        opt.arg(builder.aapt2Binary.getAbsolutePath(), "optimize");
+        opt.arg("optimize");
         opt.arg("-o", outputApk.getAbsolutePath());
         opt.arg("--enable-sparse-encoding");
         opt.arg(baseApk.getAbsolutePath());
-        BinaryUtils.execute(opt.build());
-        Files.move(outputApk.toPath(), baseApk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        String output = Aapt2Daemon.get(builder.aapt2Binary).execute(opt.build());
+        if (output.length() != 0) {
+            builder.taskManager.debug(() -> "aapt2 optimize output: " + output);
+        }
     }
 }
@@ -1,16 +1,32 @@
 package org.xedox.apkbuilder.task;
 
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.DefaultApkSignerEngine;
+import com.android.apksig.KeyConfig;
 import org.xedox.apkbuilder.ApkBuilder;
+import org.xedox.apkbuilder.ApkWriter;
 import java.io.File;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.Files;
-import net.lingala.zip4j.ZipFile;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import org.xedox.apkbuilder.util.BuildException;
+import org.xedox.apkbuilder.util.BuildState;
+import org.xedox.apkbuilder.util.DeflateCache;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import net.lingala.zip4j.model.ZipParameters;
+import java.util.List;
+import org.xedox.apkbuilder.util.LibraryDexCache;
+import org.xedox.apkbuilder.util.SignerExecutor;
+import org.xedox.apkbuilder.util.SigningKeys;
+import org.xedox.apkbuilder.util.TaskIO;
 import org.xedox.apkbuilder.util.TaskManager;
 
+/**
+ * Assembles the final APK in one pass: the linked resources are copied raw, dex files, assets
+ * and native libraries are compressed in parallel and appended in order with alignment applied
+ * as they are written, and the APK is signed on the way out.
+ */
 public class PackageResourcesTask implements TaskManager.Task {
     private final ApkBuilder builder;
 
@@ -18,39 +34,186 @@ public class PackageResourcesTask implements TaskManager.Task {
         this.builder = builder;
     }
 
+    @Override
+    public void declare(TaskIO io) {
+        ApkBuilder.BuildConfig.KeyConfig keyConfig = builder.config.keyConfig;
+        io.input(builder.resourcesApk())
+                .input(builder.dexDir)
+                .input(builder.config.assetsDir)
+                .input(builder.config.nativeLibsDir)
+                .inputs(builder.config.libraries)
+                .property("apkAlignEnable", builder.config.apkAlignEnable)
+                .property("apkSignEnable", builder.config.apkSignEnable)
+                .property("minSdk", builder.config.minSdk)
+                .property("debugMode", builder.config.debugMode)
+                .output(builder.finalApk());
+        if (builder.config.apkSignEnable) {
+            io.property("useKeystore", keyConfig.useKeystore);
+            if (keyConfig.useKeystore) {
+                io.input(keyConfig.keystore.path).property("alias", keyConfig.keystore.alias);
+            } else {
+                io.input(keyConfig.keyWithCert.keyPath).input(keyConfig.keyWithCert.certPath);
+            }
+        }
+    }
+
     @Override
     public void run() throws Exception {
-        File baseApk = new File(builder.config.buildPath, "base.apk");
-        Files.copy(builder.outputApk.toPath(), baseApk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        File[] projectDex = builder.dexDir.listFiles((dir, name) -> name.endsWith(".dex"));
+        if (projectDex == null || projectDex.length == 0) {
+            throw new BuildException("No dex files found in " + builder.dexDir);
+        }
+        Arrays.sort(projectDex, Comparator.comparingInt(LibraryDexCache::dexIndex));
+        List<File> dexFiles = new ArrayList<>(Arrays.asList(projectDex));
+        // Dexing stored them, packaging only looks them up
+        for (String path : builder.config.libraries) {
+            File library = new File(path);
+            dexFiles.addAll(
+                    builder.libraryCache.dexFiles(
+                            library, DexingClassesTask.variant(builder, library)));
+        }
+
+        List<ApkWriter.Source> sources = new ArrayList<>();
+        for (int i = 0; i < dexFiles.size(); i++) {
+            String entryName = i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex";
+            sources.add(new ApkWriter.Source(entryName, dexFiles.get(i), true));
+        }
+        if (builder.config.assetsDir != null) {
+            addDirectory(sources, new File(builder.config.assetsDir), "assets/", true);
+        }
+        if (builder.config.nativeLibsDir != null) {
+            File[] archDirs = new File(builder.config.nativeLibsDir).listFiles(File::isDirectory);
+            if (archDirs != null) {
+                Arrays.sort(archDirs);
+                for (File archDir : archDirs) {
+                    // Stored and page aligned, so they can be mapped straight from the APK
+                    addDirectory(sources, archDir, "lib/" + archDir.getName() + "/", false);
+                }
+            }
+        }
+
+        File apk = builder.finalApk();
+        DeflateCache deflateCache =
+                new DeflateCache(
+                        new File(builder.config.buildPath, "intermediates/deflated"),
+                        file ->
+                                builder.buildState != null
+                                        ? builder.buildState.fileHash(file)
+                                        : BuildState.hash(file));
+        try (ApkWriter writer = new ApkWriter(apk, signerEngine())) {
+            writer.setAlignEnabled(builder.config.apkAlignEnable);
+            writer.setDeflateCache(deflateCache);
+            writer.copyFrom(builder.resourcesApk());
+            writer.addAll(sources);
+            writer.finish();
+        } catch (Exception e) {
+            apk.delete();
+            throw e;
+        }
+        deflateCache.prune();
+        builder.taskManager.debug(
+                () -> "Deflate cache: " + deflateCache.getHits() + " hits, "
+                        + deflateCache.getMisses() + " misses");
+        builder.taskManager.debug(
+                () -> "APK written: " + apk.getName() + ", " + apk.length() + " bytes");
+    }
 
-        try (ZipFile zip = new ZipFile(baseApk)) {
-            File[] dexFiles = builder.dexDir.listFiles((dir, name) -> name.endsWith(".dex"));
-            if (dexFiles == null || dexFiles.length == 0) {
-                throw new BuildException("No dex files found in " + builder.dexDir);
+    private static void addDirectory(
+            List<ApkWriter.Source> sources, File dir, String prefix, boolean compress) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addDirectory(sources, file, prefix + file.getName() + "/", compress);
+            } else {
+                sources.add(new ApkWriter.Source(prefix + file.getName(), file, compress));
             }
+        }
+    }
+
+    private ApkSignerEngine signerEngine() throws Exception {
+        if (!builder.config.apkSignEnable) {
+            builder.taskManager.debug("APK signing disabled, skipping...");
+            return null;
+        }
+        SigningKeys keys =
+                builder.config.keyConfig.useKeystore ? keystoreKeys() : keyCertKeys();
+        DefaultApkSignerEngine.SignerConfig signer =
+                new DefaultApkSignerEngine.SignerConfig.Builder(
+                                "CERT", new KeyConfig.Jca(keys.privateKey), keys.certificates)
+                        .build();
+        int minSdk = Integer.parseInt(builder.config.minSdk);
+        // Android 7.0 verifies v2, v1 only matters for older devices. Debug builds skip v3,
+        // which only adds key rotation support
+        boolean v1 = minSdk < 24;
+        boolean v3 = !builder.config.debugMode;
+        builder.taskManager.debug(
+                () -> "Signing schemes: " + (v1 ? "v1 " : "") + "v2" + (v3 ? " v3" : ""));
+        DefaultApkSignerEngine engine =
+                new DefaultApkSignerEngine.Builder(List.of(signer), minSdk)
+                        .setV1SigningEnabled(v1)
+                        .setV2SigningEnabled(true)
+                        .setV3SigningEnabled(v3)
+                        .setCreatedBy("M-PDE")
+                        .build();
+        engine.setExecutor(SignerExecutor.get());
+        return engine;
+    }
 
-            Arrays.sort(dexFiles, Comparator.comparing(File::getName));
-
-            for (int i = 0; i < dexFiles.length; i++) {
-                String entryName = i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex";
-                zip.addFile(
-                        dexFiles[i],
-                        new ZipParameters() {
-                            {
-                                setFileNameInZip(entryName);
-                            }
-                        });
+    private SigningKeys keystoreKeys() throws BuildException {
+        ApkBuilder.BuildConfig.KeyConfig.Keystore ks = builder.config.keyConfig.keystore;
+
+        if (ks.path == null || ks.path.isEmpty()) {
+            File debugKeystore = new File(builder.config.buildPath, "debug.keystore");
+            if (!debugKeystore.exists()) {
+                copyAsset("debug.keystore", debugKeystore);
             }
+            ks.path = debugKeystore.getAbsolutePath();
+            ks.alias = "androiddebugkey";
+            ks.storePassword = "android";
+            ks.keyPassword = "android";
+        }
+        return SigningKeys.fromKeystore(
+                new File(ks.path), ks.storePassword, ks.alias, ks.keyPassword);
+    }
+
+    private SigningKeys keyCertKeys() throws BuildException {
+        ApkBuilder.BuildConfig.KeyConfig.KeyWithCert kc = builder.config.keyConfig.keyWithCert;
 
-            if (builder.config.assetsDir != null) {
-                zip.addFolder(new File(builder.config.assetsDir));
+        File keyFile = new File(builder.config.buildPath, "testkey.pk8");
+        File certFile = new File(builder.config.buildPath, "testkey.x509.pem");
+        if (kc.keyPath != null && !kc.keyPath.isEmpty()
+                && kc.certPath != null && !kc.certPath.isEmpty()) {
+            keyFile = new File(kc.keyPath);
+            certFile = new File(kc.certPath);
+        } else {
+            if (!keyFile.exists()) {
+                copyAsset("testkey.pk8", keyFile);
             }
+            if (!certFile.exists()) {
+                copyAsset("testkey.x509.pem", certFile);
+            }
+        }
 
-            if (builder.config.nativeLibsDir != null) {
-                for (File archDir : new File(builder.config.nativeLibsDir).listFiles(File::isDirectory)) {
-                    zip.addFolder(archDir);
-                }
+        if (!keyFile.exists() || !certFile.exists()) {
+            throw new BuildException("Key or certificate file not found");
+        }
+        return SigningKeys.fromKeyAndCert(keyFile, certFile);
+    }
+
+    private void copyAsset(String name, File target) throws BuildException {
+        try (InputStream is = builder.environment.openAsset(name);
+             OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
             }
+        } catch (Exception e) {
+            throw new BuildException("Failed to copy " + name, e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,185 @@
+package org.xedox.apkbuilder.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A warm aapt2 process driven through its daemon mode. Every command is written to stdin one
+ * argument per line and ends with an empty line; aapt2 answers with "Done" or "Error" on stdout.
+ * stderr is merged into stdout so the diagnostics arrive before the status line. A daemon that
+ * crashes is restarted on the next command, one that hangs is killed when its command times
+ * out. Binaries without daemon support fall back to a process per command.
+ */
+public final class Aapt2Daemon {
+    private static final Map<String, Aapt2Daemon> daemons = new HashMap<>();
+    private static final long START_TIMEOUT = 10_000;
+    private static final long COMPILE_TIMEOUT = 60_000;
+    private static final long DEFAULT_TIMEOUT = 180_000;
+    private static final String EOF = "\0EOF";
+
+    private final File binary;
+    private Process process;
+    private BufferedWriter stdin;
+    private BlockingQueue<String> stdout;
+    private boolean unsupported;
+
+    private Aapt2Daemon(File binary) {
+        this.binary = binary;
+    }
+
+    public static synchronized Aapt2Daemon get(File binary) {
+        return daemons.computeIfAbsent(binary.getAbsolutePath(), k -> new Aapt2Daemon(binary));
+    }
+
+    /** Stops every daemon, they are started again on demand. */
+    public static synchronized void shutdown() {
+        for (Aapt2Daemon daemon : daemons.values()) {
+            daemon.stop();
+        }
+    }
+
+    /**
+     * Runs an aapt2 command, args start with the subcommand such as "compile". Returns what
+     * aapt2 printed and throws when the command failed.
+     */
+    public synchronized String execute(String... args) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return run(args);
+        } finally {
+            BuildProfiler.record("aapt2 " + args[0], System.nanoTime() - start);
+        }
+    }
+
+    private String run(String[] args) throws Exception {
+        long timeout = "compile".equals(args[0]) ? COMPILE_TIMEOUT : DEFAULT_TIMEOUT;
+        for (int attempt = 0; ; attempt++) {
+            if (unsupported) {
+                return fallback(args, timeout);
+            }
+            if (process == null || !process.isAlive()) {
+                if (!start()) {
+                    unsupported = true;
+                    continue;
+                }
+            }
+            try {
+                return request(args, timeout);
+            } catch (IOException crash) {
+                // The daemon died mid command, retry once on a fresh process
+                stop();
+                if (attempt > 0) {
+                    throw new BuildException("aapt2 " + args[0] + " crashed", crash);
+                }
+            }
+        }
+    }
+
+    private String request(String[] args, long timeout) throws Exception {
+        for (String arg : args) {
+            if (arg.indexOf('\n') >= 0) {
+                throw new BuildException("aapt2 argument contains a line break: " + arg);
+            }
+            stdin.write(arg);
+            stdin.write('\n');
+        }
+        stdin.write('\n');
+        stdin.flush();
+
+        StringBuilder output = new StringBuilder();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            long left = deadline - System.currentTimeMillis();
+            String line = left > 0 ? stdout.poll(left, TimeUnit.MILLISECONDS) : null;
+            if (line == null) {
+                stop();
+                throw new BuildException(
+                        "aapt2 " + args[0] + " timed out after " + timeout / 1000 + "s");
+            }
+            if (line.equals(EOF)) {
+                throw new IOException("aapt2 daemon exited: " + output);
+            }
+            if (line.equals("Done")) {
+                return output.toString();
+            }
+            if (line.equals("Error")) {
+                throw new BuildException("aapt2 " + args[0] + " failed:\n" + output);
+            }
+            if (!line.isEmpty()) {
+                output.append(line).append('\n');
+            }
+        }
+    }
+
+    private boolean start() throws Exception {
+        ProcessBuilder pb = new ProcessBuilder(binary.getAbsolutePath(), "daemon");
+        pb.redirectErrorStream(true);
+        process = pb.start();
+        stdin =
+                new BufferedWriter(
+                        new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        stdout = new LinkedBlockingQueue<>();
+        pump(process.getInputStream(), stdout);
+
+        String ready = stdout.poll(START_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (!"Ready".equals(ready)) {
+            stop();
+            return false;
+        }
+        return true;
+    }
+
+    private void stop() {
+        if (process == null) {
+            return;
+        }
+        try {
+            stdin.write("quit\n\n");
+            stdin.flush();
+        } catch (IOException ignored) {
+            // Already gone
+        }
+        process.destroy();
+        process = null;
+        stdin = null;
+    }
+
+    private static void pump(InputStream in, BlockingQueue<String> lines) {
+        Thread thread =
+                new Thread(
+                        () -> {
+                            try (BufferedReader reader =
+                                    new BufferedReader(
+                                            new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                                String line;
+                                while ((line = reader.readLine()) != null) {
+                                    lines.add(line);
+                                }
+                            } catch (IOException ignored) {
+                                // Process was destroyed
+                            }
+                            lines.add(EOF);
+                        },
+                        "aapt2-daemon");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private String fallback(String[] args, long timeout) throws Exception {
+        String[] command = new String[args.length + 1];
+        command[0] = binary.getAbsolutePath();
+        System.arraycopy(args, 0, command, 1, args.length);
+        return BinaryUtils.execute(command, timeout);
+    }
+}
@@ -25,6 +25,7 @@ public class ApkbuilderProperties {
         config.nativeLibsDir = props.getProperty("nativeLibsDir");
         config.desugarJdkLibsPath = props.getProperty("desugarJdkLibsPath");
         config.proguardRulesPath = props.getProperty("proguardRulesPath");
+        config.libraryDexCacheDir = props.getProperty("libraryDexCacheDir");
 
         config.appPackage = props.getProperty("appPackage", "com.example.app");
         config.packageId = props.getProperty("packageId", "0x7f");
@@ -36,6 +37,7 @@ public class ApkbuilderProperties {
         config.javaVersion = props.getProperty("javaVersion", "17");
 
         config.debugMode = Boolean.parseBoolean(props.getProperty("debugMode", "true"));
+        config.incremental = Boolean.parseBoolean(props.getProperty("incremental", "true"));
         config.r8enabled = Boolean.parseBoolean(props.getProperty("r8enabled", "false"));
         config.apkAlignEnable = Boolean.parseBoolean(props.getProperty("apkAlignEnable", "true"));
         config.apkSignEnable = Boolean.parseBoolean(props.getProperty("apkSignEnable", "true"));
@@ -52,6 +54,15 @@ public class ApkbuilderProperties {
             }
         }
 
+        String libraries = props.getProperty("libraries");
+        if (libraries != null) {
+            for (String library : libraries.split(";")) {
+                if (!library.trim().isEmpty()) {
+                    config.libraries.add(library.trim());
+                }
+            }
+        }
+
         config.keyConfig.useKeystore =
                 Boolean.parseBoolean(props.getProperty("keyConfig.useKeystore", "false"));
 
@@ -88,12 +99,14 @@ public class ApkbuilderProperties {
         props.setProperty("javaVersion", "17");
 
         props.setProperty("debugMode", "true");
+        props.setProperty("incremental", "true");
         props.setProperty("r8enabled", "false");
         props.setProperty("apkAlignEnable", "true");
         props.setProperty("apkSignEnable", "true");
         props.setProperty("aapt2OptimizeEnable", "true");
 
         props.setProperty("javaSources", "src/main/java");
+        props.setProperty("libraries", "");
 
         props.setProperty("keyConfig.useKeystore", "false");
         props.setProperty("keyConfig.keystore.path", "");
@@ -115,7 +128,7 @@ public class ApkbuilderProperties {
 
     private static Properties getPropertiesFromFile(File file) {
         Properties properties = new Properties();
-        try (FileInputStream fis = new FileInputStream("config.properties")) {
+        try (FileInputStream fis = new FileInputStream(file)) {
             properties.load(fis);
         } catch (IOException e) {
             e.printStackTrace();
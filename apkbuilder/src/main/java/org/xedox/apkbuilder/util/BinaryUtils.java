@@ -3,38 +3,57 @@ package org.xedox.apkbuilder.util;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.concurrent.TimeUnit;
 
 public class BinaryUtils {
-    public static String execute(String[] command) throws Exception {
-        Process process = null;
+    /** Runs the command with stderr merged into the output, failing on timeout or exit code. */
+    public static String execute(String[] command, long timeoutMillis) throws Exception {
         ProcessBuilder pb = new ProcessBuilder(command);
         pb.redirectErrorStream(true);
-        process = pb.start();
+        Process process = pb.start();
 
         StringBuilder output = new StringBuilder();
-        try (InputStream is = process.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
-            }
-        }
+        Thread reader =
+                new Thread(
+                        () -> {
+                            try (BufferedReader in =
+                                    new BufferedReader(
+                                            new InputStreamReader(process.getInputStream()))) {
+                                String line;
+                                while ((line = in.readLine()) != null) {
+                                    synchronized (output) {
+                                        output.append(line).append("\n");
+                                    }
+                                }
+                            } catch (IOException ignored) {
+                                // Process was destroyed
+                            }
+                        });
+        reader.setDaemon(true);
+        reader.start();
 
-        boolean finished = process.waitFor(30, TimeUnit.SECONDS);
-        if (!finished) {
+        if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
             process.destroyForcibly();
-            throw new RuntimeException("Command timed out: " + String.join(" ", command));
+            throw new BuildException("Command timed out: " + String.join(" ", command));
+        }
+        reader.join(1000);
+        synchronized (output) {
+            if (process.exitValue() != 0) {
+                throw new BuildException(
+                        "Command failed with exit code " + process.exitValue() + ":\n" + output);
+            }
+            return output.toString();
         }
-        return output.toString();
     }
 
     public static void setExecutable(File file) throws Exception {
         if (!file.exists()) {
             throw new BuildException("File not found: " + file);
         }
+        if (file.canExecute()) {
+            return;
+        }
 
         if (!file.setExecutable(true, true)) {
             Runtime.getRuntime().exec(new String[] {"chmod", "777", file.getAbsolutePath()});
@@ -0,0 +1,114 @@
+package org.xedox.apkbuilder.util;
+
+/** Something that happened during a build: a task state change, a message or a diagnostic. */
+public final class BuildEvent {
+
+    public enum Type {
+        TASK_STARTED,
+        TASK_FINISHED,
+        TASK_FAILED,
+        TASK_SKIPPED,
+        MESSAGE,
+        DIAGNOSTIC,
+        PROGRESS
+    }
+
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARNING,
+        ERROR
+    }
+
+    public final Type type;
+    public final Level level;
+    /** Task name for task events, the text for messages and diagnostics. */
+    public final String message;
+    public final String file;
+    public final int line;
+    public final int column;
+    /** Milliseconds for finished and failed tasks, percent for progress. */
+    public final long value;
+    public final int depth;
+    public final Throwable error;
+    public final long time = System.currentTimeMillis();
+    /** Position in the event stream, assigned when the event is published. */
+    long sequence = -1;
+
+    private BuildEvent(
+            Type type,
+            Level level,
+            String message,
+            String file,
+            int line,
+            int column,
+            long value,
+            int depth,
+            Throwable error) {
+        this.type = type;
+        this.level = level;
+        this.message = message;
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.value = value;
+        this.depth = depth;
+        this.error = error;
+    }
+
+    public static BuildEvent task(Type type, String name, long duration, int depth) {
+        Level level = type == Type.TASK_FAILED ? Level.ERROR : Level.INFO;
+        return new BuildEvent(type, level, name, null, 0, 0, duration, depth, null);
+    }
+
+    public static BuildEvent message(Level level, String message, Throwable error, int depth) {
+        return new BuildEvent(Type.MESSAGE, level, message, null, 0, 0, 0, depth, error);
+    }
+
+    public static BuildEvent diagnostic(
+            Level level, String file, int line, int column, String message, int depth) {
+        return new BuildEvent(Type.DIAGNOSTIC, level, message, file, line, column, 0, depth, null);
+    }
+
+    public static BuildEvent progress(String task, int percent) {
+        return new BuildEvent(Type.PROGRESS, Level.INFO, task, null, 0, 0, percent, 0, null);
+    }
+
+    /** The line printed to the build log, null for events without text. */
+    public String format() {
+        String indent = depth > 0 ? "   ".repeat(depth) : "";
+        switch (type) {
+            case TASK_STARTED:
+                return indent + ":Task " + message;
+            case TASK_FINISHED:
+                return indent + "Completed: " + message + " (" + value + "ms)";
+            case TASK_FAILED:
+                return indent + "Failed: " + message + " (" + value + "ms)";
+            case TASK_SKIPPED:
+                return indent + ":Task " + message + " UP-TO-DATE";
+            case DIAGNOSTIC:
+                return (level == Level.ERROR ? "ERROR" : "WARNING")
+                        + " in " + file + " (at line " + line
+                        + (column > 0 ? ", column " + column : "") + ")\n\t" + message;
+            case MESSAGE:
+                switch (level) {
+                    case DEBUG:
+                        return indent + "[DEBUG] " + message;
+                    case WARNING:
+                        return indent + "[WARN] " + message;
+                    case ERROR:
+                        return indent + "[ERROR] " + message;
+                    default:
+                        return indent + message;
+                }
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String text = format();
+        return text != null ? text : type + " " + message + " " + value;
+    }
+}
@@ -0,0 +1,243 @@
+package org.xedox.apkbuilder.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Build events in a fixed size ring. Publishing claims a slot with a single atomic increment;
+ * every listener reads the ring with its own cursor on a dispatcher thread, so a slow consumer
+ * such as the editor widget does not hold up build workers until it is a whole ring behind.
+ * Then publishers wait for it, no event is ever lost.
+ */
+public final class BuildEventBus {
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long IDLE_EXIT_MILLIS = 10_000;
+
+    public interface Listener {
+        /** Runs on the dispatcher thread, which must not publish: it could wait on itself. */
+        void onEvent(BuildEvent event);
+
+        /** Called when the listener has caught up with the stream, a good time to flush. */
+        default void onIdle() {}
+    }
+
+    private static final class Subscription {
+        final Listener listener;
+        volatile long cursor;
+        volatile long flushed;
+        /** Only written by the dispatcher. */
+        volatile int failures;
+
+        Subscription(Listener listener, long cursor) {
+            this.listener = listener;
+            this.cursor = cursor;
+            this.flushed = cursor;
+        }
+    }
+
+    private final AtomicReferenceArray<BuildEvent> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong next = new AtomicLong();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Thread dispatcher;
+    private volatile boolean parked;
+
+    /** Subscribes to events published from now on. */
+    public void subscribe(Listener listener) {
+        subscriptions.add(new Subscription(listener, next.get()));
+    }
+
+    public void unsubscribe(Listener listener) {
+        subscriptions.removeIf(s -> s.listener == listener);
+    }
+
+    public boolean hasListeners() {
+        return !subscriptions.isEmpty();
+    }
+
+    public void publish(BuildEvent event) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        long sequence = next.getAndIncrement();
+        event.sequence = sequence;
+        awaitSlot(sequence);
+        ring.set((int) (sequence & MASK), event);
+        wake();
+    }
+
+    /**
+     * Waits until every listener has read the event one ring earlier in the slot of the
+     * sequence. That event was written before it could be read, so the slot never holds a newer
+     * one either.
+     */
+    private void awaitSlot(long sequence) {
+        long previous = sequence - CAPACITY;
+        if (previous < 0 || minCursor() > previous) {
+            return;
+        }
+        boolean interrupted = false;
+        while (minCursor() <= previous) {
+            wake();
+            LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            // Events must not get lost to a cancelled task, wait on and interrupt afterwards
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long minCursor() {
+        long min = Long.MAX_VALUE;
+        for (Subscription subscription : subscriptions) {
+            min = Math.min(min, subscription.cursor);
+        }
+        return min;
+    }
+
+    /** Waits until every listener has received and flushed everything published so far. */
+    public void awaitIdle(long timeoutMillis) {
+        long target = next.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            boolean idle = true;
+            for (Subscription subscription : subscriptions) {
+                if (subscription.flushed < target) {
+                    idle = false;
+                    break;
+                }
+            }
+            if (idle || Thread.currentThread() == dispatcher) {
+                return;
+            }
+            wake();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private void wake() {
+        if (!running.get() && running.compareAndSet(false, true)) {
+            Thread thread = new Thread(this::dispatch, "BuildEvents");
+            thread.setDaemon(true);
+            dispatcher = thread;
+            thread.start();
+        } else if (parked) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private void dispatch() {
+        long lastEvent = System.currentTimeMillis();
+        while (true) {
+            boolean delivered = false;
+            for (Subscription subscription : subscriptions) {
+                delivered |= drain(subscription);
+            }
+            if (delivered) {
+                lastEvent = System.currentTimeMillis();
+                continue;
+            }
+            if (System.currentTimeMillis() - lastEvent > IDLE_EXIT_MILLIS) {
+                running.set(false);
+                // A publisher may have seen running == true just before it was cleared
+                if (!hasPending() || !running.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            parked = true;
+            if (!hasPending()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            parked = false;
+        }
+    }
+
+    private boolean hasPending() {
+        long published = next.get();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.cursor < published || subscription.flushed < published) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean drain(Subscription subscription) {
+        long cursor = subscription.cursor;
+        boolean delivered = false;
+        while (true) {
+            BuildEvent event = ring.get((int) (cursor & MASK));
+            if (event == null || event.sequence < cursor) {
+                // Claimed but not written yet
+                break;
+            }
+            cursor++;
+            delivered = true;
+            try {
+                subscription.listener.onEvent(event);
+            } catch (RuntimeException e) {
+                // A broken listener must not stop the others
+                failed(subscription, e);
+            }
+            // Published per event, publishers waiting for the slot go on right away
+            subscription.cursor = cursor;
+        }
+        if (!delivered && subscription.flushed < cursor) {
+            try {
+                subscription.listener.onIdle();
+            } catch (RuntimeException e) {
+                failed(subscription, e);
+            }
+            subscription.flushed = cursor;
+        }
+        return delivered;
+    }
+
+    /**
+     * Tells the other listeners about the first failure of a listener. Later ones are only
+     * counted, a listener that throws on every event would otherwise flood the stream. Handed
+     * to them directly: the dispatcher must not wait for a ring slot it frees itself.
+     */
+    private void failed(Subscription subscription, RuntimeException e) {
+        if (subscription.failures++ != 0) {
+            return;
+        }
+        BuildEvent warning =
+                BuildEvent.message(
+                        BuildEvent.Level.WARNING,
+                        "Build event listener "
+                                + subscription.listener.getClass().getName()
+                                + " failed",
+                        e,
+                        0);
+        for (Subscription other : subscriptions) {
+            if (other != subscription) {
+                try {
+                    other.listener.onEvent(warning);
+                } catch (RuntimeException ignored) {
+                    // Reported by its own first failure
+                }
+            }
+        }
+    }
+
+    /** Events and idle calls a listener threw on. */
+    public int getFailures(Listener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                return subscription.failures;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,362 @@
+package org.xedox.apkbuilder.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the time of a build goes: nanoseconds of every task and of the tool phases inside them
+ * (ECJ parse/resolve/analyze/generate, D8 per-class dexing, every aapt2 command), bytes read and
+ * written and the peak heap. Each build is appended to a compact history file per project, one
+ * tab separated line, and compared against the median of the previous successful builds that
+ * are comparable: same toolchain and as many tasks skipped as up to date.
+ *
+ * <p>Tools report into the build that is running through the static methods, which do nothing
+ * when no build is being profiled.
+ */
+public final class BuildProfiler {
+    public static final String FILE_NAME = "build-history";
+    private static final int HISTORY_LIMIT = 100;
+    /** Comparable builds the median is taken over. */
+    private static final int WINDOW = 10;
+    /** Slower than the median by this ratio and at least MIN_REGRESSION nanos is flagged. */
+    private static final double REGRESSION_RATIO = 1.2;
+    private static final long MIN_REGRESSION = 50_000_000L;
+
+    private static volatile BuildProfiler current;
+
+    private final long time = System.currentTimeMillis();
+    private final long start = System.nanoTime();
+    private final Map<String, long[]> phases = new LinkedHashMap<>();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong peakHeap = new AtomicLong();
+    private String toolchain = "";
+
+    private BuildProfiler() {}
+
+    /** Starts profiling a build, replacing the one that was running. */
+    public static BuildProfiler start() {
+        BuildProfiler profiler = new BuildProfiler();
+        profiler.sampleHeap();
+        current = profiler;
+        return profiler;
+    }
+
+    /** Adds a run of a task or tool phase to the running build. */
+    public static void record(String phase, long nanos) {
+        record(phase, nanos, 1);
+    }
+
+    /** Adds a phase that processed count items, such as classes dexed one file per class. */
+    public static void record(String phase, long nanos, int count) {
+        BuildProfiler profiler = current;
+        if (profiler == null) {
+            return;
+        }
+        synchronized (profiler.phases) {
+            long[] totals = profiler.phases.computeIfAbsent(phase, k -> new long[2]);
+            totals[0] += nanos;
+            totals[1] += count;
+        }
+        profiler.sampleHeap();
+    }
+
+    public static void read(long bytes) {
+        BuildProfiler profiler = current;
+        if (profiler != null) {
+            profiler.bytesRead.addAndGet(bytes);
+        }
+    }
+
+    public static void written(long bytes) {
+        BuildProfiler profiler = current;
+        if (profiler != null) {
+            profiler.bytesWritten.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Identifies the toolchain (aapt2, android.jar, ...) by length and modification time, so a
+     * regression can be told apart from a toolchain update.
+     */
+    public void setToolchain(File... files) {
+        StringBuilder sb = new StringBuilder();
+        for (File file : files) {
+            if (file != null) {
+                sb.append(file.getAbsolutePath()).append(':').append(file.length());
+                sb.append(':').append(file.lastModified()).append('|');
+            }
+        }
+        toolchain = BuildState.hash(sb.toString().getBytes(StandardCharsets.UTF_8)).substring(0, 8);
+    }
+
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        peakHeap.accumulateAndGet(used, Math::max);
+    }
+
+    /**
+     * Stops profiling and returns the record of the build.
+     *
+     * @param skipped tasks that were up to date, 0 for a full build
+     */
+    public Build finish(boolean success, int skipped) {
+        sampleHeap();
+        if (current == this) {
+            current = null;
+        }
+        Build build = new Build();
+        build.time = time;
+        build.success = success;
+        build.skipped = skipped;
+        build.nanos = System.nanoTime() - start;
+        build.peakHeap = peakHeap.get();
+        build.bytesRead = bytesRead.get();
+        build.bytesWritten = bytesWritten.get();
+        build.toolchain = toolchain;
+        synchronized (phases) {
+            for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+                build.phases.put(phase.getKey(), phase.getValue().clone());
+            }
+        }
+        return build;
+    }
+
+    /** One line of the history: when, how long and where the time went. */
+    public static class Build {
+        public long time;
+        public boolean success;
+        public long nanos;
+        public long peakHeap;
+        public long bytesRead;
+        public long bytesWritten;
+        public String toolchain = "";
+        /** Tasks skipped as up to date. */
+        public int skipped;
+        /** Phase name to nanoseconds and number of runs. */
+        public final Map<String, long[]> phases = new LinkedHashMap<>();
+
+        String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(time).append('\t').append(success ? 1 : 0).append('\t').append(nanos);
+            sb.append('\t').append(peakHeap).append('\t').append(bytesRead);
+            sb.append('\t').append(bytesWritten).append('\t').append(toolchain);
+            sb.append('\t').append(skipped);
+            for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+                String name = phase.getKey().replace('\t', ' ').replace('\n', ' ');
+                sb.append('\t').append(name.replace('=', '-')).append('=');
+                sb.append(phase.getValue()[0]);
+                if (phase.getValue()[1] != 1) {
+                    sb.append('/').append(phase.getValue()[1]);
+                }
+            }
+            return sb.toString();
+        }
+
+        static Build parse(String line) {
+            String[] fields = line.split("\t");
+            // Lines written before the skip count was recorded are dropped
+            if (fields.length < 8) {
+                return null;
+            }
+            try {
+                Build build = new Build();
+                build.time = Long.parseLong(fields[0]);
+                build.success = fields[1].equals("1");
+                build.nanos = Long.parseLong(fields[2]);
+                build.peakHeap = Long.parseLong(fields[3]);
+                build.bytesRead = Long.parseLong(fields[4]);
+                build.bytesWritten = Long.parseLong(fields[5]);
+                build.toolchain = fields[6];
+                build.skipped = Integer.parseInt(fields[7]);
+                for (int i = 8; i < fields.length; i++) {
+                    int eq = fields[i].lastIndexOf('=');
+                    if (eq < 0) continue;
+                    String value = fields[i].substring(eq + 1);
+                    int slash = value.indexOf('/');
+                    long[] totals = new long[] {0, 1};
+                    if (slash >= 0) {
+                        totals[1] = Long.parseLong(value.substring(slash + 1));
+                        value = value.substring(0, slash);
+                    }
+                    totals[0] = Long.parseLong(value);
+                    build.phases.put(fields[i].substring(0, eq), totals);
+                }
+                return build;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /** Builds of the history file, oldest first. A missing or broken file is an empty history. */
+    public static List<Build> load(File file) {
+        List<Build> builds = new ArrayList<>();
+        if (!file.isFile()) {
+            return builds;
+        }
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                Build build = Build.parse(line);
+                if (build != null) builds.add(build);
+            }
+        } catch (IOException ignored) {
+            // Only statistics, start over
+        }
+        return builds;
+    }
+
+    /** Writes the history with the build appended, keeping the last HISTORY_LIMIT builds. */
+    public static void save(File file, List<Build> history, Build build) throws IOException {
+        List<Build> builds = new ArrayList<>(history);
+        builds.add(build);
+        if (builds.size() > HISTORY_LIMIT) {
+            builds = builds.subList(builds.size() - HISTORY_LIMIT, builds.size());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Build b : builds) {
+            sb.append(b.toLine()).append('\n');
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) parent.mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        if (!temp.renameTo(file)) {
+            Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+            temp.delete();
+        }
+    }
+
+    /**
+     * The last WINDOW successful builds before this one that did the same work with the same
+     * toolchain. A full build is never measured against incremental ones, nor the other way.
+     */
+    private static List<Build> window(Build build, List<Build> history) {
+        List<Build> window = new ArrayList<>();
+        for (int i = history.size() - 1; i >= 0 && window.size() < WINDOW; i--) {
+            Build b = history.get(i);
+            if (b.success && b.skipped == build.skipped && b.toolchain.equals(build.toolchain)) {
+                window.add(b);
+            }
+        }
+        Collections.reverse(window);
+        return window;
+    }
+
+    private static long median(long[] values, int count) {
+        if (count == 0) return -1;
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return count % 2 == 1
+                ? sorted[count / 2]
+                : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+
+    private static boolean slower(long nanos, long median) {
+        return median >= 0
+                && nanos > median * REGRESSION_RATIO
+                && nanos - median >= MIN_REGRESSION;
+    }
+
+    /** Phases of the build that are slower than their rolling median, one line each. */
+    public static List<String> regressions(Build build, List<Build> history) {
+        List<String> lines = new ArrayList<>();
+        List<Build> window = window(build, history);
+        if (!build.success || window.isEmpty()) {
+            return lines;
+        }
+        long median = median(totals(window, null), window.size());
+        if (slower(build.nanos, median)) {
+            lines.add("Build took " + formatNanos(build.nanos) + ", "
+                    + percent(build.nanos, median) + " over the median of the last "
+                    + window.size() + " comparable builds");
+        }
+        for (Map.Entry<String, long[]> phase : build.phases.entrySet()) {
+            long[] values = totals(window, phase.getKey());
+            long phaseMedian = median(values, values.length);
+            if (slower(phase.getValue()[0], phaseMedian)) {
+                lines.add("  " + phase.getKey() + " " + formatNanos(phase.getValue()[0])
+                        + ", median " + formatNanos(phaseMedian) + " ("
+                        + percent(phase.getValue()[0], phaseMedian) + ")");
+            }
+        }
+        return lines;
+    }
+
+    /** Every phase of the build next to its rolling median, and the trend of the build time. */
+    public static List<String> report(Build build, List<Build> history) {
+        List<String> lines = new ArrayList<>();
+        List<Build> window = window(build, history);
+        lines.add("=== Build Profile ===");
+        for (Map.Entry<String, long[]> phase : build.phases.entrySet()) {
+            long nanos = phase.getValue()[0];
+            long count = phase.getValue()[1];
+            long[] values = totals(window, phase.getKey());
+            long median = median(values, values.length);
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-36s %9s", phase.getKey(), formatNanos(nanos)));
+            if (count > 1) sb.append(" x").append(count);
+            if (median >= 0) {
+                sb.append("  median ").append(formatNanos(median));
+                if (slower(nanos, median)) sb.append("  SLOWER ").append(percent(nanos, median));
+            }
+            lines.add(sb.toString());
+        }
+        lines.add(String.format("Read %s, written %s, peak heap %s",
+                formatBytes(build.bytesRead), formatBytes(build.bytesWritten),
+                formatBytes(build.peakHeap)));
+        if (!window.isEmpty()) {
+            StringBuilder trend = new StringBuilder("Trend:");
+            for (Build b : window) {
+                trend.append(' ').append(formatNanos(b.nanos));
+            }
+            trend.append(" -> ").append(formatNanos(build.nanos));
+            lines.add(trend.toString());
+        }
+        return lines;
+    }
+
+    /** Phase (or whole build, for a null phase) nanos of the builds that ran it. */
+    private static long[] totals(List<Build> builds, String phase) {
+        long[] values = new long[builds.size()];
+        int count = 0;
+        for (Build b : builds) {
+            if (phase == null) {
+                values[count++] = b.nanos;
+            } else if (b.phases.containsKey(phase)) {
+                values[count++] = b.phases.get(phase)[0];
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    private static String percent(long value, long median) {
+        return median > 0 ? "+" + Math.round((value - median) * 100.0 / median) + "%" : "";
+    }
+
+    public static String formatNanos(long nanos) {
+        if (nanos < 10_000_000L) {
+            return String.format("%.2fms", nanos / 1e6);
+        }
+        if (nanos < 10_000_000_000L) {
+            return (nanos / 1_000_000L) + "ms";
+        }
+        return String.format("%.1fs", nanos / 1e9);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + "B";
+        if (bytes < 1024 * 1024) return String.format("%.1fKB", bytes / 1024.0);
+        return String.format("%.1fMB", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,191 @@
+package org.xedox.apkbuilder.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persisted record of what every build task read and wrote, stored as content hashes. A task
+ * whose inputs and outputs still match the recorded hashes does not need to run again.
+ */
+public class BuildState {
+
+    public static final String FILE_NAME = ".build-state";
+
+    private static final String TASK_PREFIX = "task.";
+    private static final String FILE_PREFIX = "file.";
+
+    private final File file;
+    private final Properties props = new Properties();
+    private final Set<String> touchedFiles = ConcurrentHashMap.newKeySet();
+
+    private BuildState(File file) {
+        this.file = file;
+    }
+
+    public static BuildState load(File file) {
+        BuildState state = new BuildState(file);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                state.props.load(in);
+            } catch (IOException e) {
+                state.props.clear();
+            }
+        }
+        return state;
+    }
+
+    public synchronized void save() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        props.stringPropertyNames().stream()
+                .filter(key -> key.startsWith(FILE_PREFIX) && !touchedFiles.contains(key))
+                .forEach(props::remove);
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "Incremental build state");
+        }
+    }
+
+    public String inputsFingerprint(TaskIO io) throws IOException {
+        return fingerprint(io.getInputs(), io.getProperties());
+    }
+
+    public boolean isUpToDate(String task, String inputsFingerprint, TaskIO io)
+            throws IOException {
+        String inputs = props.getProperty(TASK_PREFIX + task + ".inputs");
+        String outputs = props.getProperty(TASK_PREFIX + task + ".outputs");
+        if (inputs == null || outputs == null || !inputs.equals(inputsFingerprint)) {
+            return false;
+        }
+        for (File output : io.getOutputs()) {
+            if (!output.exists()) {
+                return false;
+            }
+        }
+        return outputs.equals(fingerprint(io.getOutputs(), null));
+    }
+
+    public void invalidate(String task) {
+        props.remove(TASK_PREFIX + task + ".inputs");
+        props.remove(TASK_PREFIX + task + ".outputs");
+    }
+
+    public void record(String task, String inputsFingerprint, TaskIO io)
+            throws IOException {
+        props.setProperty(TASK_PREFIX + task + ".inputs", inputsFingerprint);
+        props.setProperty(TASK_PREFIX + task + ".outputs", fingerprint(io.getOutputs(), null));
+    }
+
+    public String fingerprint(Collection<File> files, Map<String, String> properties)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        if (properties != null) {
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                update(digest, entry.getKey() + "=" + entry.getValue());
+            }
+        }
+        List<File> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparing(File::getAbsolutePath));
+        for (File f : sorted) {
+            update(digest, f.getAbsolutePath());
+            if (f.isDirectory()) {
+                fingerprintDirectory(digest, f, "");
+            } else if (f.isFile()) {
+                update(digest, fileHash(f));
+            } else {
+                update(digest, "<missing>");
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private void fingerprintDirectory(MessageDigest digest, File dir, String prefix)
+            throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children, Comparator.comparing(File::getName));
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                fingerprintDirectory(digest, child, path + "/");
+            } else {
+                update(digest, path);
+                update(digest, fileHash(child));
+            }
+        }
+    }
+
+    /**
+     * Content hash of a single file. Hashes are cached by path, length and modification time,
+     * so unchanged files are never read twice. Safe to call from several build workers.
+     */
+    public String fileHash(File f) throws IOException {
+        String key = FILE_PREFIX + f.getAbsolutePath();
+        String stamp = f.length() + ":" + f.lastModified() + ":";
+        touchedFiles.add(key);
+        String cached = props.getProperty(key);
+        if (cached != null && cached.startsWith(stamp)) {
+            return cached.substring(stamp.length());
+        }
+        String hash = hash(f);
+        props.setProperty(key, stamp + hash);
+        return hash;
+    }
+
+    public static String hash(File f) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new FileInputStream(f)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String hash(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
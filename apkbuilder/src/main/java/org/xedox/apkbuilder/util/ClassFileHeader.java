@@ -0,0 +1,90 @@
+package org.xedox.apkbuilder.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Reads the name, super class and interfaces of a class file without loading the class. */
+public class ClassFileHeader {
+
+    public final String name;
+    public final String superName;
+    public final List<String> interfaces;
+
+    private ClassFileHeader(String name, String superName, List<String> interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+    }
+
+    public List<String> getSupertypes() {
+        List<String> supertypes = new ArrayList<>(interfaces);
+        if (superName != null) {
+            supertypes.add(0, superName);
+        }
+        return supertypes;
+    }
+
+    public static ClassFileHeader read(byte[] classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNameIndex = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1:
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7:
+                    classNameIndex[i] = in.readUnsignedShort();
+                    break;
+                case 8:
+                case 16:
+                case 19:
+                case 20:
+                    in.skipBytes(2);
+                    break;
+                case 15:
+                    in.skipBytes(3);
+                    break;
+                case 3:
+                case 4:
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    in.skipBytes(4);
+                    break;
+                case 5:
+                case 6:
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        in.readUnsignedShort();
+        String name = utf8[classNameIndex[in.readUnsignedShort()]];
+        int superIndex = in.readUnsignedShort();
+        String superName = superIndex == 0 ? null : utf8[classNameIndex[superIndex]];
+        int interfaceCount = in.readUnsignedShort();
+        List<String> interfaces = new ArrayList<>(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaces.add(utf8[classNameIndex[in.readUnsignedShort()]]);
+        }
+        return new ClassFileHeader(name, superName, interfaces);
+    }
+}
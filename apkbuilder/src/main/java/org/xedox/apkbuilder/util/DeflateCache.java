@@ -0,0 +1,133 @@
+package org.xedox.apkbuilder.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deflated APK entry payloads by content hash and compression level. An unchanged asset is
+ * spliced into the next APK with its cached compressed bytes and CRC instead of being deflated
+ * again. Entries that deflate does not shrink are remembered as stored. Entries not used by a
+ * build are removed by {@link #prune()}, so the store only holds the current APK's contents.
+ */
+public final class DeflateCache {
+
+    public interface Hasher {
+        String hash(File file) throws IOException;
+    }
+
+    public static class Payload {
+        public final long crc;
+        public final long size;
+        /** Raw deflate data, null when the entry is stored. */
+        public final byte[] deflated;
+
+        public Payload(long crc, long size, byte[] deflated) {
+            this.crc = crc;
+            this.size = size;
+            this.deflated = deflated;
+        }
+    }
+
+    private final File dir;
+    private final Hasher hasher;
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public DeflateCache(File dir, Hasher hasher) {
+        this.dir = dir;
+        this.hasher = hasher;
+    }
+
+    /** Key of the file's content deflated at the given level. */
+    public String key(File file, int level) throws IOException {
+        String key = hasher.hash(file) + "-" + (level < 0 ? "d" : String.valueOf(level));
+        used.add(key);
+        return key;
+    }
+
+    /** The cached payload, null on a miss. */
+    public Payload get(String key) {
+        File file = file(key);
+        if (!file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long crc = in.readLong();
+            long size = in.readLong();
+            byte[] deflated = null;
+            if (in.readBoolean()) {
+                deflated = new byte[in.readInt()];
+                in.readFully(deflated);
+            }
+            hits.incrementAndGet();
+            return new Payload(crc, size, deflated);
+        } catch (IOException e) {
+            // Truncated by a crash, deflate again
+            file.delete();
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void put(String key, Payload payload) throws IOException {
+        File file = file(key);
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeLong(payload.crc);
+            out.writeLong(payload.size);
+            out.writeBoolean(payload.deflated != null);
+            if (payload.deflated != null) {
+                out.writeInt(payload.deflated.length);
+                out.write(payload.deflated);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+        BuildProfiler.written(file.length());
+    }
+
+    /** Deletes every payload that was not asked for since this cache was created. */
+    public void prune() {
+        File[] buckets = dir.listFiles(File::isDirectory);
+        if (buckets == null) {
+            return;
+        }
+        for (File bucket : buckets) {
+            File[] files = bucket.listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                if (!used.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+            bucket.delete();
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    private File file(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+}
@@ -0,0 +1,352 @@
+package org.xedox.apkbuilder.util;
+
+import com.android.tools.r8.ArchiveClassFileProvider;
+import com.android.tools.r8.BaseCommand;
+import com.android.tools.r8.ByteDataView;
+import com.android.tools.r8.ClassFileResourceProvider;
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
+import com.android.tools.r8.D8;
+import com.android.tools.r8.D8Command;
+import com.android.tools.r8.DexFilePerClassFileConsumer;
+import com.android.tools.r8.DexIndexedConsumer;
+import com.android.tools.r8.Diagnostic;
+import com.android.tools.r8.DiagnosticsHandler;
+import com.android.tools.r8.ProgramResource;
+import com.android.tools.r8.R8;
+import com.android.tools.r8.R8Command;
+import com.android.tools.r8.Version;
+import com.android.tools.r8.origin.Origin;
+import com.android.tools.r8.origin.PathOrigin;
+import com.android.tools.r8.position.Position;
+import com.android.tools.r8.position.TextPosition;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * In-process D8/R8 that stays warm for the whole IDE session. Library and classpath jars are
+ * opened once and kept until they change on disk, the compiler threads are reused between
+ * builds and diagnostics are collected instead of printed to System.err.
+ */
+public class DexingEngine {
+
+    private static DexingEngine instance;
+
+    private final Map<String, CachedArchive> archives = new HashMap<>();
+    private final ExecutorService executor;
+
+    private DexingEngine() {
+        executor = WorkerPool.newFixed("DexWorker", TaskManager.getParallelism());
+    }
+
+    /** Version of the bundled D8/R8, their output changes with it. */
+    public static String version() {
+        return Version.getVersionString();
+    }
+
+    public static synchronized DexingEngine get() {
+        if (instance == null) {
+            instance = new DexingEngine();
+        }
+        return instance;
+    }
+
+    /**
+     * Dexes the classes one dex file per class (nest members and synthetics land with their
+     * primary class). Returns dex bytes by internal name of the primary class.
+     */
+    public Map<String, byte[]> dexPerClass(
+            Map<String, byte[]> classes, Request request, Diagnostics diagnostics)
+            throws BuildException {
+        Map<String, byte[]> output = Collections.synchronizedMap(new TreeMap<>());
+        D8Command.Builder builder =
+                D8Command.builder(diagnostics)
+                        .setIntermediate(true)
+                        .setProgramConsumer(
+                                new DexFilePerClassFileConsumer() {
+                                    @Override
+                                    public void accept(
+                                            String primaryClassDescriptor,
+                                            ByteDataView data,
+                                            Set<String> descriptors,
+                                            DiagnosticsHandler handler) {
+                                        output.put(
+                                                internalName(primaryClassDescriptor),
+                                                data.copyByteData());
+                                    }
+
+                                    @Override
+                                    public void finished(DiagnosticsHandler handler) {}
+                                });
+        addClasses(builder, classes);
+        long start = System.nanoTime();
+        d8(request.apply(builder), diagnostics);
+        BuildProfiler.record("d8 per-class", System.nanoTime() - start, classes.size());
+        return output;
+    }
+
+    /** Dexes the program files (jars, class or dex files) into indexed classes*.dex data. */
+    public List<byte[]> dex(
+            Collection<Path> programFiles, Request request, Diagnostics diagnostics)
+            throws BuildException {
+        IndexedOutput output = new IndexedOutput();
+        D8Command.Builder builder =
+                D8Command.builder(diagnostics)
+                        .addProgramFiles(programFiles)
+                        .setProgramConsumer(output);
+        long start = System.nanoTime();
+        d8(request.apply(builder), diagnostics);
+        BuildProfiler.record("d8 merge", System.nanoTime() - start, programFiles.size());
+        return output.get();
+    }
+
+    /** Shrinks and dexes the classes with R8 into indexed classes*.dex data. */
+    public List<byte[]> shrink(
+            Map<String, byte[]> classes,
+            List<Path> proguardRules,
+            Request request,
+            Diagnostics diagnostics)
+            throws BuildException {
+        IndexedOutput output = new IndexedOutput();
+        R8Command.Builder builder = R8Command.builder(diagnostics).setProgramConsumer(output);
+        addClasses(builder, classes);
+        for (Path rules : proguardRules) {
+            builder.addProguardConfigurationFiles(rules);
+        }
+        long start = System.nanoTime();
+        try {
+            R8.run(request.apply(builder).build(), executor);
+        } catch (CompilationFailedException e) {
+            throw diagnostics.failure("R8", e);
+        }
+        BuildProfiler.record("r8", System.nanoTime() - start, classes.size());
+        return output.get();
+    }
+
+    private void d8(D8Command.Builder builder, Diagnostics diagnostics) throws BuildException {
+        try {
+            D8.run(builder.build(), executor);
+        } catch (CompilationFailedException e) {
+            throw diagnostics.failure("D8", e);
+        }
+    }
+
+    private static void addClasses(BaseCommand.Builder<?, ?> builder, Map<String, byte[]> classes) {
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            builder.addClassProgramData(
+                    entry.getValue(), new PathOrigin(Paths.get(entry.getKey() + ".class")));
+        }
+    }
+
+    /**
+     * Opened jar for the library or classpath. The provider is kept between builds and only
+     * reopened when the jar changes on disk.
+     */
+    public synchronized ClassFileResourceProvider archive(File jar) throws IOException {
+        String key = jar.getAbsolutePath();
+        CachedArchive cached = archives.get(key);
+        if (cached != null
+                && cached.length == jar.length()
+                && cached.lastModified == jar.lastModified()) {
+            return cached.provider;
+        }
+        if (cached != null) {
+            cached.provider.close();
+        }
+        cached = new CachedArchive(jar);
+        archives.put(key, cached);
+        return cached.provider;
+    }
+
+    /** In-memory class files as a resource provider, used as a classpath for partial dexing. */
+    public static ClassFileResourceProvider memory(Map<String, byte[]> classes) {
+        Map<String, byte[]> byDescriptor = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            byDescriptor.put("L" + entry.getKey() + ";", entry.getValue());
+        }
+        return new ClassFileResourceProvider() {
+            @Override
+            public Set<String> getClassDescriptors() {
+                return byDescriptor.keySet();
+            }
+
+            @Override
+            public ProgramResource getProgramResource(String descriptor) {
+                byte[] bytes = byDescriptor.get(descriptor);
+                if (bytes == null) {
+                    return null;
+                }
+                return ProgramResource.fromBytes(
+                        new PathOrigin(Paths.get(internalName(descriptor) + ".class")),
+                        ProgramResource.Kind.CF,
+                        bytes,
+                        Collections.singleton(descriptor));
+            }
+        };
+    }
+
+    private static String internalName(String descriptor) {
+        return descriptor.substring(1, descriptor.length() - 1);
+    }
+
+    /** Common options of a D8/R8 command: mode, min API, library and classpath. */
+    public static class Request {
+        private final int minApi;
+        private CompilationMode mode = CompilationMode.DEBUG;
+        private boolean desugaring = true;
+        private final List<ClassFileResourceProvider> libraries = new ArrayList<>();
+        private final List<ClassFileResourceProvider> classpath = new ArrayList<>();
+
+        public Request(String minApi) {
+            this.minApi = Integer.parseInt(minApi);
+        }
+
+        public Request release() {
+            mode = CompilationMode.RELEASE;
+            return this;
+        }
+
+        public Request noDesugaring() {
+            desugaring = false;
+            return this;
+        }
+
+        public Request library(ClassFileResourceProvider provider) {
+            libraries.add(provider);
+            return this;
+        }
+
+        public Request classpath(ClassFileResourceProvider provider) {
+            classpath.add(provider);
+            return this;
+        }
+
+        D8Command.Builder apply(D8Command.Builder builder) {
+            builder.setMinApiLevel(minApi).setMode(mode).setDisableDesugaring(!desugaring);
+            libraries.forEach(builder::addLibraryResourceProvider);
+            classpath.forEach(builder::addClasspathResourceProvider);
+            return builder;
+        }
+
+        R8Command.Builder apply(R8Command.Builder builder) {
+            builder.setMinApiLevel(minApi).setMode(mode).setDisableDesugaring(!desugaring);
+            libraries.forEach(builder::addLibraryResourceProvider);
+            classpath.forEach(builder::addClasspathResourceProvider);
+            return builder;
+        }
+    }
+
+    /** Collects the diagnostics reported by D8/R8 during one compilation. */
+    public static class Diagnostics implements DiagnosticsHandler {
+        public enum Level {
+            ERROR,
+            WARNING,
+            INFO
+        }
+
+        public static class Message {
+            public final Level level;
+            public final String text;
+            public final String origin;
+            public final int line;
+
+            Message(Level level, Diagnostic diagnostic) {
+                this.level = level;
+                this.text = diagnostic.getDiagnosticMessage();
+                Origin o = diagnostic.getOrigin();
+                this.origin = o == null || o == Origin.unknown() ? null : o.toString();
+                Position position = diagnostic.getPosition();
+                this.line = position instanceof TextPosition
+                        ? ((TextPosition) position).getLine()
+                        : -1;
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder();
+                if (origin != null) {
+                    sb.append(origin);
+                    if (line > 0) sb.append(':').append(line);
+                    sb.append(": ");
+                }
+                return sb.append(text).toString();
+            }
+        }
+
+        public final List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void error(Diagnostic diagnostic) {
+            messages.add(new Message(Level.ERROR, diagnostic));
+        }
+
+        @Override
+        public void warning(Diagnostic diagnostic) {
+            messages.add(new Message(Level.WARNING, diagnostic));
+        }
+
+        @Override
+        public void info(Diagnostic diagnostic) {
+            messages.add(new Message(Level.INFO, diagnostic));
+        }
+
+        public List<Message> get(Level level) {
+            List<Message> result = new ArrayList<>();
+            synchronized (messages) {
+                for (Message message : messages) {
+                    if (message.level == level) result.add(message);
+                }
+            }
+            return result;
+        }
+
+        BuildException failure(String tool, CompilationFailedException e) {
+            List<Message> errors = get(Level.ERROR);
+            String message = errors.isEmpty() ? e.getMessage() : errors.get(0).toString();
+            return new BuildException(tool + " failed: " + message, e);
+        }
+    }
+
+    private static class IndexedOutput implements DexIndexedConsumer {
+        private final Map<Integer, byte[]> files = new TreeMap<>();
+
+        @Override
+        public synchronized void accept(
+                int fileIndex,
+                ByteDataView data,
+                Set<String> descriptors,
+                DiagnosticsHandler handler) {
+            files.put(fileIndex, data.copyByteData());
+        }
+
+        @Override
+        public void finished(DiagnosticsHandler handler) {}
+
+        synchronized List<byte[]> get() {
+            return new ArrayList<>(files.values());
+        }
+    }
+
+    private static class CachedArchive {
+        final long length;
+        final long lastModified;
+        final ArchiveClassFileProvider provider;
+
+        CachedArchive(File jar) throws IOException {
+            this.length = jar.length();
+            this.lastModified = jar.lastModified();
+            this.provider = new ArchiveClassFileProvider(jar.toPath());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.xedox.apkbuilder.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Store of pre-dexed libraries shared by every project. A library is dexed once per content
+ * hash and variant, which names everything else the dex depends on (min SDK, dexer version,
+ * android.jar, ...); builds then package the stored dex files as they are.
+ */
+public class LibraryDexCache {
+
+    public interface Dexer {
+        void dex(File classesJar, File outputDir) throws Exception;
+    }
+
+    private static final Object lock = new Object();
+
+    private final File root;
+    private final File indexFile;
+    private final Properties index = new Properties();
+
+    public LibraryDexCache(File root) {
+        this.root = root;
+        this.indexFile = new File(root, "index.properties");
+        if (indexFile.exists()) {
+            try (InputStream in = new FileInputStream(indexFile)) {
+                index.load(in);
+            } catch (IOException e) {
+                index.clear();
+            }
+        }
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /** The jar to compile against: the library itself, or the classes.jar of an AAR. */
+    public File classesJar(File library) throws IOException {
+        if (!library.getName().endsWith(".aar")) {
+            return library;
+        }
+        File jar = new File(root, "jars/" + baseName(library) + "-" + shortHash(library) + ".jar");
+        synchronized (lock) {
+            if (!jar.exists()) {
+                extractClassesJar(library, jar);
+            }
+        }
+        return jar;
+    }
+
+    public List<File> ensureDexed(File library, String variant, Dexer dexer) throws Exception {
+        File dir = dexDir(library, variant);
+        synchronized (lock) {
+            if (!dir.isDirectory()) {
+                File temp = new File(root, dir.getName() + ".tmp");
+                delete(temp);
+                temp.mkdirs();
+                dexer.dex(classesJar(library), temp);
+                if (!temp.renameTo(dir)) {
+                    throw new BuildException("Failed to store pre-dexed library: " + dir);
+                }
+            }
+        }
+        return dexFiles(library, variant);
+    }
+
+    /** The stored dex files of a library in order; never dexes, fails when there are none. */
+    public List<File> dexFiles(File library, String variant) throws IOException, BuildException {
+        File dir = dexDir(library, variant);
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".dex"));
+        if (files == null || files.length == 0) {
+            throw new BuildException("Library is not pre-dexed: " + library);
+        }
+        Arrays.sort(files, Comparator.comparingInt(LibraryDexCache::dexIndex));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    public File dexDir(File library, String variant) throws IOException {
+        return new File(root, baseName(library) + "-" + shortHash(library) + "-" + variant);
+    }
+
+    /** Content hash of a file, kept by path, length and modification time. */
+    public String shortHash(File library) throws IOException {
+        String stamp = library.length() + ":" + library.lastModified() + ":";
+        String key = library.getAbsolutePath();
+        synchronized (lock) {
+            String cached = index.getProperty(key);
+            if (cached != null && cached.startsWith(stamp)) {
+                return cached.substring(stamp.length());
+            }
+            String hash = BuildState.hash(library).substring(0, 16);
+            index.setProperty(key, stamp + hash);
+            root.mkdirs();
+            try (OutputStream out = new FileOutputStream(indexFile)) {
+                index.store(out, "Library hashes");
+            }
+            return hash;
+        }
+    }
+
+    private static void extractClassesJar(File aar, File jar) throws IOException {
+        try (ZipFile zip = new ZipFile(aar)) {
+            ZipEntry entry = zip.getEntry("classes.jar");
+            if (entry == null) {
+                throw new IOException("No classes.jar in " + aar);
+            }
+            jar.getParentFile().mkdirs();
+            File temp = new File(jar.getPath() + ".tmp");
+            try (InputStream in = zip.getInputStream(entry);
+                    OutputStream out = new FileOutputStream(temp)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            if (!temp.renameTo(jar)) {
+                throw new IOException("Failed to extract classes.jar from " + aar);
+            }
+        }
+    }
+
+    /** Orders classes.dex, classes2.dex, ..., classes10.dex numerically. */
+    public static int dexIndex(File dex) {
+        String name = dex.getName();
+        String number = name.substring("classes".length(), name.length() - ".dex".length());
+        try {
+            return number.isEmpty() ? 1 : Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static String baseName(File library) {
+        String name = library.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,55 @@
+package org.xedox.apkbuilder.util;
+
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.apksig.util.RunnablesProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the apksig digest workers on a warm pool. The signer hands out 1 MB chunks of the APK
+ * from a shared queue, so every runnable keeps hashing until the chunks run out.
+ */
+public final class SignerExecutor implements RunnablesExecutor {
+    private static SignerExecutor instance;
+
+    private final ExecutorService pool;
+    private final int parallelism = TaskManager.getParallelism();
+
+    private SignerExecutor() {
+        pool = WorkerPool.newFixed("SignWorker", parallelism);
+    }
+
+    public static synchronized SignerExecutor get() {
+        if (instance == null) {
+            instance = new SignerExecutor();
+        }
+        return instance;
+    }
+
+    @Override
+    public void execute(RunnablesProvider provider) {
+        List<Future<?>> futures = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            futures.add(pool.submit(provider.createRunnable()));
+        }
+        RuntimeException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new RuntimeException("APK digest failed", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while signing", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
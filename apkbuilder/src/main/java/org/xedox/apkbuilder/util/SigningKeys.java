@@ -0,0 +1,147 @@
+package org.xedox.apkbuilder.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Private key and certificate chain of an APK signer. Loaded keys are kept for the session and
+ * reused while the key files keep their length and modification time.
+ */
+public class SigningKeys {
+    private static final Map<String, SigningKeys> cache = new ConcurrentHashMap<>();
+
+    public final PrivateKey privateKey;
+    public final List<X509Certificate> certificates;
+
+    public SigningKeys(PrivateKey privateKey, List<X509Certificate> certificates) {
+        this.privateKey = privateKey;
+        this.certificates = Collections.unmodifiableList(certificates);
+    }
+
+    /** A PKCS#8 DER key such as testkey.pk8 with its PEM or DER certificate. */
+    public static SigningKeys fromKeyAndCert(File keyFile, File certFile) throws BuildException {
+        String key = "cert:" + stamp(keyFile) + "|" + stamp(certFile);
+        SigningKeys keys = cache.get(key);
+        if (keys == null) {
+            keys = readKeyAndCert(keyFile, certFile);
+            cache.put(key, keys);
+        }
+        return keys;
+    }
+
+    /** Loads a key entry from a keystore; the store type is guessed. Null alias takes the first. */
+    public static SigningKeys fromKeystore(
+            File keystoreFile, String storePassword, String alias, String keyPassword)
+            throws BuildException {
+        String key =
+                "keystore:" + stamp(keystoreFile) + "|" + alias + "|" + storePassword + "|"
+                        + keyPassword;
+        SigningKeys keys = cache.get(key);
+        if (keys == null) {
+            keys = readKeystore(keystoreFile, storePassword, alias, keyPassword);
+            cache.put(key, keys);
+        }
+        return keys;
+    }
+
+    private static String stamp(File file) {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    private static SigningKeys readKeyAndCert(File keyFile, File certFile)
+            throws BuildException {
+        try {
+            PKCS8EncodedKeySpec spec =
+                    new PKCS8EncodedKeySpec(Files.readAllBytes(keyFile.toPath()));
+            PrivateKey key = null;
+            for (String algorithm : new String[] {"RSA", "EC", "DSA"}) {
+                try {
+                    key = KeyFactory.getInstance(algorithm).generatePrivate(spec);
+                    break;
+                } catch (Exception ignored) {
+                    // Try the next algorithm
+                }
+            }
+            if (key == null) {
+                throw new BuildException("Unsupported private key: " + keyFile);
+            }
+            List<X509Certificate> certificates = new ArrayList<>();
+            try (InputStream in = new FileInputStream(certFile)) {
+                for (Certificate cert :
+                        CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+                    certificates.add((X509Certificate) cert);
+                }
+            }
+            if (certificates.isEmpty()) {
+                throw new BuildException("No certificate in " + certFile);
+            }
+            return new SigningKeys(key, certificates);
+        } catch (BuildException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BuildException("Failed to load signing key " + keyFile, e);
+        }
+    }
+
+    private static SigningKeys readKeystore(
+            File keystoreFile, String storePassword, String alias, String keyPassword)
+            throws BuildException {
+        Set<String> types = new LinkedHashSet<>();
+        types.add(KeyStore.getDefaultType());
+        Collections.addAll(types, "PKCS12", "JKS", "BKS");
+        char[] storePass = storePassword != null ? storePassword.toCharArray() : null;
+        Exception failure = null;
+        for (String type : types) {
+            KeyStore keyStore;
+            try {
+                keyStore = KeyStore.getInstance(type);
+            } catch (Exception e) {
+                continue;
+            }
+            try (InputStream in = new FileInputStream(keystoreFile)) {
+                keyStore.load(in, storePass);
+            } catch (Exception e) {
+                failure = e;
+                continue;
+            }
+            try {
+                String name = alias;
+                if (name == null || name.isEmpty()) {
+                    name = Collections.list(keyStore.aliases()).get(0);
+                }
+                char[] keyPass = keyPassword != null ? keyPassword.toCharArray() : storePass;
+                Key key = keyStore.getKey(name, keyPass);
+                if (!(key instanceof PrivateKey)) {
+                    throw new BuildException("No private key '" + name + "' in " + keystoreFile);
+                }
+                List<X509Certificate> certificates = new ArrayList<>();
+                for (Certificate cert : keyStore.getCertificateChain(name)) {
+                    certificates.add((X509Certificate) cert);
+                }
+                return new SigningKeys((PrivateKey) key, certificates);
+            } catch (BuildException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new BuildException("Failed to load key from " + keystoreFile, e);
+            }
+        }
+        throw new BuildException("Failed to open keystore " + keystoreFile, failure);
+    }
+}
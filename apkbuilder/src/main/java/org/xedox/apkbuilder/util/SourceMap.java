@@ -0,0 +1,70 @@
+package org.xedox.apkbuilder.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the lines of a generated source back to the files it was generated from, so compiler
+ * problems point at what the user wrote. For every generated line it keeps the original file
+ * and line and the number of columns the generator inserted in front of the original text.
+ */
+public class SourceMap {
+    private final List<String> files = new ArrayList<>();
+    private int[] fileIndices = new int[64];
+    private int[] lines = new int[64];
+    private int[] shifts = new int[64];
+    private int size;
+
+    /**
+     * Records the next generated line.
+     *
+     * @param sourceFile original file, null for a line that only exists in the output
+     * @param sourceLine 1-based original line
+     */
+    public void add(String sourceFile, int sourceLine, int columnShift) {
+        if (size == lines.length) {
+            fileIndices = Arrays.copyOf(fileIndices, size * 2);
+            lines = Arrays.copyOf(lines, size * 2);
+            shifts = Arrays.copyOf(shifts, size * 2);
+        }
+        int fileIndex = -1;
+        if (sourceFile != null) {
+            // A handful of tabs at most
+            fileIndex = files.indexOf(sourceFile);
+            if (fileIndex < 0) {
+                fileIndex = files.size();
+                files.add(sourceFile);
+            }
+        }
+        fileIndices[size] = fileIndex;
+        lines[size] = sourceFile != null ? sourceLine : 0;
+        shifts[size] = columnShift;
+        size++;
+    }
+
+    public int getLineCount() {
+        return size;
+    }
+
+    /** Original file of a 1-based generated line, null when it has none. */
+    public String file(int generatedLine) {
+        if (generatedLine < 1 || generatedLine > size || fileIndices[generatedLine - 1] < 0) {
+            return null;
+        }
+        return files.get(fileIndices[generatedLine - 1]);
+    }
+
+    /** Original line of a 1-based generated line, 0 when it has none. */
+    public int line(int generatedLine) {
+        return generatedLine >= 1 && generatedLine <= size ? lines[generatedLine - 1] : 0;
+    }
+
+    /** Original 1-based column, 0 when unknown. */
+    public int column(int generatedLine, int generatedColumn) {
+        if (generatedColumn <= 0 || line(generatedLine) == 0) {
+            return 0;
+        }
+        return Math.max(1, generatedColumn - shifts[generatedLine - 1]);
+    }
+}
@@ -0,0 +1,78 @@
+package org.xedox.apkbuilder.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+public class TaskIO {
+
+    private final List<File> inputs = new ArrayList<>();
+    private final List<File> outputs = new ArrayList<>();
+    private final Map<String, String> properties = new TreeMap<>();
+    private final Map<String, Supplier<?>> lazyProperties = new TreeMap<>();
+
+    public TaskIO input(File file) {
+        if (file != null) {
+            inputs.add(file);
+        }
+        return this;
+    }
+
+    public TaskIO input(String path) {
+        if (path != null && !path.isEmpty()) {
+            inputs.add(new File(path));
+        }
+        return this;
+    }
+
+    public TaskIO inputs(List<String> paths) {
+        for (String path : paths) {
+            input(path);
+        }
+        return this;
+    }
+
+    public TaskIO output(File file) {
+        if (file != null) {
+            outputs.add(file);
+        }
+        return this;
+    }
+
+    public TaskIO property(String key, Object value) {
+        properties.put(key, String.valueOf(value));
+        return this;
+    }
+
+    /** A property whose value is only known once the tasks this one depends on have run. */
+    public TaskIO lazyProperty(String key, Supplier<?> value) {
+        lazyProperties.put(key, value);
+        return this;
+    }
+
+    public List<File> getInputs() {
+        return inputs;
+    }
+
+    public List<File> getOutputs() {
+        return outputs;
+    }
+
+    public Map<String, String> getProperties() {
+        if (lazyProperties.isEmpty()) {
+            return properties;
+        }
+        Map<String, String> all = new TreeMap<>(properties);
+        for (Map.Entry<String, Supplier<?>> entry : lazyProperties.entrySet()) {
+            all.put(entry.getKey(), String.valueOf(entry.getValue().get()));
+        }
+        return all;
+    }
+
+    public boolean isDeclared() {
+        return !outputs.isEmpty();
+    }
+}
@@ -1,27 +1,112 @@
 package org.xedox.apkbuilder.util;
 
+import java.io.File;
 import java.io.PrintStream;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 public class TaskManager {
 
+    private static final int PARALLELISM =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final WorkerPool workers = new WorkerPool("BuildWorker", PARALLELISM);
+
     private final PrintStream out;
-    private boolean verbose = false;
-    private final Stack<Long> taskStartTimes = new Stack<>();
-    private final AtomicInteger taskDepth = new AtomicInteger(0);
-    private int successCount = 0;
-    private int failureCount = 0;
-    private int warningCount = 0;
-    private long globalStartTime = 0;
+    private volatile boolean verbose = false;
+    private final ThreadLocal<Integer> taskDepth = ThreadLocal.withInitial(() -> 0);
+    private final AtomicInteger successCount = new AtomicInteger();
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private final AtomicInteger warningCount = new AtomicInteger();
+    private final AtomicInteger upToDateCount = new AtomicInteger();
+    private volatile long globalStartTime = 0;
+
+    private final BuildEventBus events = new BuildEventBus();
 
     public TaskManager(PrintStream out) {
         this.out = out;
+        events.subscribe(new PrintStreamListener(out));
+    }
+
+    /** Writes the events as text, flushing whenever the stream has been caught up with. */
+    public static class PrintStreamListener implements BuildEventBus.Listener {
+        private final PrintStream out;
+
+        public PrintStreamListener(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void onEvent(BuildEvent event) {
+            String text = event.format();
+            if (text != null) {
+                out.println(text);
+            }
+            if (event.error != null) {
+                event.error.printStackTrace(out);
+            }
+        }
+
+        @Override
+        public void onIdle() {
+            out.flush();
+        }
     }
 
     @FunctionalInterface
     public interface Task {
         void run() throws Exception;
+
+        default void declare(TaskIO io) {}
+    }
+
+    /** A task in a build graph. Dependencies come from the declared inputs and outputs. */
+    public static class Node {
+        public final String name;
+        public final Task task;
+        public final TaskIO io;
+        private final Set<Node> dependencies = new LinkedHashSet<>();
+
+        public Node(String name, Task task, TaskIO io) {
+            this.name = name;
+            this.task = task;
+            this.io = io;
+        }
+
+        public Node after(Node node) {
+            dependencies.add(node);
+            return this;
+        }
+
+        public Set<Node> getDependencies() {
+            return dependencies;
+        }
+
+        boolean consumes(Node producer) {
+            for (File output : producer.io.getOutputs()) {
+                for (File input : io.getInputs()) {
+                    if (isSameOrInside(input, output) || isSameOrInside(output, input)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean isSameOrInside(File file, File dir) {
+            String path = file.getAbsolutePath();
+            String parent = dir.getAbsolutePath();
+            return path.equals(parent) || path.startsWith(parent + File.separator);
+        }
     }
 
     public void start() {
@@ -30,72 +115,220 @@ public class TaskManager {
     }
 
     public void reset() {
-        successCount = 0;
-        failureCount = 0;
-        warningCount = 0;
+        successCount.set(0);
+        failureCount.set(0);
+        warningCount.set(0);
+        upToDateCount.set(0);
         taskDepth.set(0);
-        taskStartTimes.clear();
     }
 
     public void task(String name, Task task) throws Exception {
         long startTime = System.currentTimeMillis();
-        taskStartTimes.push(startTime);
+        long startNanos = System.nanoTime();
 
         printTaskHeader(name);
-        taskDepth.incrementAndGet();
+        int depth = taskDepth.get();
+        taskDepth.set(depth + 1);
 
         try {
             task.run();
-            successCount++;
+            successCount.incrementAndGet();
             printTaskSuccess(name, startTime);
         } catch (Exception e) {
-            failureCount++;
+            failureCount.incrementAndGet();
             printTaskFailure(name, startTime);
             throw e;
         } finally {
-            taskDepth.decrementAndGet();
-            if (!taskStartTimes.isEmpty()) {
-                taskStartTimes.pop();
+            taskDepth.set(depth);
+            BuildProfiler.record(name, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Runs the nodes on the worker pool. A node starts once every node it depends on has
+     * finished; independent nodes run concurrently. The first failure stops scheduling, waits
+     * for the running nodes and is rethrown.
+     */
+    public void graph(List<Node> nodes, BooleanSupplier stopRequested) throws Exception {
+        Map<Node, Set<Node>> dependencies = new HashMap<>();
+        Map<Node, List<Node>> dependents = new HashMap<>();
+        for (Node node : nodes) {
+            Set<Node> deps = new LinkedHashSet<>(node.dependencies);
+            for (Node other : nodes) {
+                if (other != node && node.consumes(other)) {
+                    deps.add(other);
+                }
+            }
+            dependencies.put(node, deps);
+            for (Node dep : deps) {
+                dependents.computeIfAbsent(dep, k -> new ArrayList<>()).add(node);
+            }
+        }
+
+        ExecutorService executor = workers.get();
+        BlockingQueue<Result> finished = new LinkedBlockingQueue<>();
+        Map<Node, Integer> pending = new HashMap<>();
+        List<Node> ready = new ArrayList<>();
+        for (Node node : nodes) {
+            pending.put(node, dependencies.get(node).size());
+            if (dependencies.get(node).isEmpty()) {
+                ready.add(node);
+            }
+        }
+
+        int depth = taskDepth.get();
+        int running = 0;
+        int done = 0;
+        Exception failure = null;
+        while (done < nodes.size()) {
+            if (failure == null && !stopRequested.getAsBoolean()) {
+                for (Node node : ready) {
+                    running++;
+                    executor.execute(
+                            () -> {
+                                taskDepth.set(depth);
+                                Exception error = null;
+                                try {
+                                    node.task.run();
+                                } catch (Exception e) {
+                                    error = e;
+                                } catch (Throwable e) {
+                                    error = new BuildException(node.name + " crashed", e);
+                                } finally {
+                                    taskDepth.remove();
+                                }
+                                finished.add(new Result(node, error));
+                            });
+                }
+                ready.clear();
+            }
+            if (running == 0) {
+                break;
+            }
+            Result result = finished.take();
+            running--;
+            done++;
+            if (result.error != null) {
+                if (failure == null) {
+                    failure = result.error;
+                }
+                continue;
             }
+            for (Node dependent : dependents.getOrDefault(result.node, List.of())) {
+                int left = pending.merge(dependent, -1, Integer::sum);
+                if (left == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (done < nodes.size() && !stopRequested.getAsBoolean()) {
+            throw new BuildException("Task graph contains a dependency cycle");
+        }
+    }
+
+    private static class Result {
+        final Node node;
+        final Exception error;
+
+        Result(Node node, Exception error) {
+            this.node = node;
+            this.error = error;
         }
     }
 
+    /** Tasks skipped as up to date since the last {@link #reset()}. */
+    public int getUpToDateCount() {
+        return upToDateCount.get();
+    }
+
+    public static int getParallelism() {
+        return PARALLELISM;
+    }
+
+    public void skip(String name) {
+        upToDateCount.incrementAndGet();
+        events.publish(BuildEvent.task(BuildEvent.Type.TASK_SKIPPED, name, 0, taskDepth.get()));
+    }
+
+    public void progress(String name, int percent) {
+        events.publish(BuildEvent.progress(name, percent));
+    }
+
     public void log(String message) {
-        out.println(indent() + message);
+        message(BuildEvent.Level.INFO, message, null);
     }
 
     public void debug(String message) {
         if (verbose) {
-            out.println(indent() + "[DEBUG] " + message);
+            message(BuildEvent.Level.DEBUG, message, null);
         }
     }
 
+    /** Debug message that is only built when verbose output is on. */
+    public void debug(Supplier<String> message) {
+        if (verbose) {
+            message(BuildEvent.Level.DEBUG, message.get(), null);
+        }
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
     public void error(String message) {
-        out.println(indent() + "[ERROR] " + message);
+        message(BuildEvent.Level.ERROR, message, null);
     }
 
     public void warn(String message) {
-        warningCount++;
-        out.println(indent() + "[WARN] " + message);
+        warningCount.incrementAndGet();
+        message(BuildEvent.Level.WARNING, message, null);
     }
 
     public void error(String message, Throwable e) {
-        error(message);
-        if (e != null) {
-            e.printStackTrace(out);
+        message(BuildEvent.Level.ERROR, message, e);
+    }
+
+    /** A compiler or tool message that points at a source position. */
+    public void diagnostic(boolean error, String file, int line, int column, String message) {
+        if (!error) {
+            warningCount.incrementAndGet();
         }
+        BuildEvent.Level level = error ? BuildEvent.Level.ERROR : BuildEvent.Level.WARNING;
+        events.publish(
+                BuildEvent.diagnostic(level, file, line, column, message, taskDepth.get()));
+    }
+
+    private void message(BuildEvent.Level level, String message, Throwable error) {
+        events.publish(BuildEvent.message(level, message, error, taskDepth.get()));
+    }
+
+    public BuildEventBus getEvents() {
+        return events;
+    }
+
+    /** Waits until every listener has seen the events published so far. */
+    public void flush() {
+        events.awaitIdle(2000);
     }
 
     public String getStatistics() {
         long totalTime = globalStartTime > 0 ? System.currentTimeMillis() - globalStartTime : 0;
         return String.format(
-                "Tasks: %d successful, %d failed, %d warnings | Total time: %dms",
-                successCount, failureCount, warningCount, totalTime);
+                "Tasks: %d successful, %d up-to-date, %d failed, %d warnings | Total time: %dms",
+                successCount.get(),
+                upToDateCount.get(),
+                failureCount.get(),
+                warningCount.get(),
+                totalTime);
     }
 
     public void printStatistics() {
-        out.println("\n=== Execution Summary ===");
-        out.println(getStatistics());
+        log("\n=== Execution Summary ===");
+        log(getStatistics());
+        flush();
     }
 
     public void setVerbose(boolean verbose) {
@@ -107,23 +340,18 @@ public class TaskManager {
     }
 
     public void printTaskHeader(String name) {
-        out.println(indent() + ":Task " + name);
+        events.publish(BuildEvent.task(BuildEvent.Type.TASK_STARTED, name, 0, taskDepth.get()));
     }
 
     public void printTaskSuccess(String name, long startTime) {
         long duration = System.currentTimeMillis() - startTime;
-        out.println(indent() + "Completed: " + name + " (" + duration + "ms)");
+        events.publish(
+                BuildEvent.task(BuildEvent.Type.TASK_FINISHED, name, duration, taskDepth.get()));
     }
 
     public void printTaskFailure(String name, long startTime) {
         long duration = System.currentTimeMillis() - startTime;
-        out.println(indent() + "Failed: " + name + " (" + duration + "ms)");
-    }
-
-    private String indent() {
-        if (taskDepth.get() <= 0) {
-            return "";
-        }
-        return "   ".repeat(taskDepth.get());
+        events.publish(
+                BuildEvent.task(BuildEvent.Type.TASK_FAILED, name, duration, taskDepth.get()));
     }
 }
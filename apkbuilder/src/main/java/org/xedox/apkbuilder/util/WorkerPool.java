@@ -0,0 +1,39 @@
+package org.xedox.apkbuilder.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool of daemon threads named {@code <name>-1}, {@code <name>-2}, ..., started on first
+ * use and kept for the life of the process, so builds after the first find it warm.
+ */
+public final class WorkerPool {
+    private final String name;
+    private final int threads;
+    private ExecutorService executor;
+
+    public WorkerPool(String name, int threads) {
+        this.name = name;
+        this.threads = threads;
+    }
+
+    public synchronized ExecutorService get() {
+        if (executor == null) {
+            executor = newFixed(name, threads);
+        }
+        return executor;
+    }
+
+    /** A fixed pool of daemon threads named after {@code name} and a counter. */
+    public static ExecutorService newFixed(String name, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(
+                threads,
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+}
@@ -0,0 +1,93 @@
+package org.xedox.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xedox.javac.CompilerService;
+import org.xedox.javac.JavaCompiler;
+
+/**
+ * ECJ over a preprocessed sketch. {@code batch} is the batch compiler that starts from scratch
+ * on every call, {@code cold} is the compiler service right after its caches were dropped,
+ * {@code warm} reuses the indexed classpath and {@code upToDate} is an incremental build with
+ * nothing changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CompilerBenchmark {
+
+    @Param({"small", "large"})
+    public String sketch;
+
+    private File sources;
+    private File output;
+    private File stateFile;
+    private List<String> batchOptions;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        sources = Fixtures.sketchSources(sketch);
+        output = Fixtures.newDir("classes-" + sketch);
+        stateFile = new File(Fixtures.dir(), "javac-" + sketch + ".state");
+        batchOptions =
+                List.of(
+                        "-17",
+                        "-nowarn",
+                        "-proceedOnError",
+                        // The batch compiler resolves java.* from the host JDK, which is
+                        // what the stub android.jar holds
+                        "-cp",
+                        Fixtures.processingCore().getAbsolutePath(),
+                        "-d",
+                        output.getAbsolutePath(),
+                        sources.getAbsolutePath());
+        // Incremental state for upToDate
+        CompilerService.get().compile(request().incremental(stateFile));
+    }
+
+    @State(Scope.Thread)
+    public static class Cold {
+        @Setup(Level.Invocation)
+        public void reset() {
+            CompilerService.get().reset();
+        }
+    }
+
+    private CompilerService.Request request() throws IOException {
+        return Fixtures.compileRequest(sources).destination(output);
+    }
+
+    @Benchmark
+    public boolean batch() {
+        PrintWriter out = new PrintWriter(Writer.nullWriter());
+        return new JavaCompiler(out, out).compile(batchOptions);
+    }
+
+    @Benchmark
+    public CompilerService.Result cold(Cold cold) throws IOException {
+        return CompilerService.get().compile(request());
+    }
+
+    @Benchmark
+    public CompilerService.Result warm() throws IOException {
+        return CompilerService.get().compile(request());
+    }
+
+    @Benchmark
+    public CompilerService.Result upToDate() throws IOException {
+        return CompilerService.get().compile(request().incremental(stateFile));
+    }
+}
@@ -0,0 +1,66 @@
+package org.xedox.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xedox.apkbuilder.util.BuildException;
+import org.xedox.apkbuilder.util.DexingEngine;
+
+/**
+ * D8 over the classes of a compiled sketch, the two steps DexingClassesTask runs: dexing one
+ * dex file per class into the intermediate cache and merging those into classes.dex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DexingBenchmark {
+
+    @Param({"small", "large"})
+    public String sketch;
+
+    private Map<String, byte[]> classes;
+    private List<Path> perClassDex;
+
+    @Setup
+    public void setup() throws Exception {
+        classes = Fixtures.classes(sketch);
+        File dexDir = Fixtures.newDir("dex-" + sketch);
+        perClassDex = new ArrayList<>();
+        for (Map.Entry<String, byte[]> dex : perClass().entrySet()) {
+            File file = new File(dexDir, dex.getKey().replace('/', '_') + ".dex");
+            Files.write(file.toPath(), dex.getValue());
+            perClassDex.add(file.toPath());
+        }
+    }
+
+    private DexingEngine.Request request() throws IOException {
+        DexingEngine engine = DexingEngine.get();
+        return new DexingEngine.Request("21")
+                .library(engine.archive(Fixtures.androidJar()))
+                .classpath(engine.archive(Fixtures.processingCore()));
+    }
+
+    @Benchmark
+    public Map<String, byte[]> perClass() throws IOException, BuildException {
+        return DexingEngine.get()
+                .dexPerClass(classes, request(), new DexingEngine.Diagnostics());
+    }
+
+    @Benchmark
+    public List<byte[]> merge() throws IOException, BuildException {
+        return DexingEngine.get().dex(perClassDex, request(), new DexingEngine.Diagnostics());
+    }
+}
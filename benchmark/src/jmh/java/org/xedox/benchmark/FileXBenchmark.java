@@ -0,0 +1,54 @@
+package org.xedox.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xedox.utils.io.FileX;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileXBenchmark {
+
+    /** A source file, a library jar and a large asset. */
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    private FileX file;
+    private File copy;
+
+    @Setup
+    public void setup() throws IOException {
+        file = FileX.of(Fixtures.randomFile("file-" + size, size));
+        copy = new File(Fixtures.dir(), "copy-" + size);
+    }
+
+    @Benchmark
+    public String read() throws IOException {
+        return file.read();
+    }
+
+    @Benchmark
+    public byte[] readBytes() throws IOException {
+        return file.readBytes();
+    }
+
+    @Benchmark
+    public File copy() throws IOException {
+        FileX.copy(file, copy);
+        return copy;
+    }
+
+    @Benchmark
+    public String checksum() throws IOException {
+        return FileX.calculateChecksum(file, "SHA-256");
+    }
+}
@@ -0,0 +1,208 @@
+package org.xedox.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.xedox.javac.CompilerService;
+import org.xedox.mpde.build.Preprocessor;
+
+/**
+ * Inputs shared by the benchmarks. Sketches are checked in as resources; everything derived
+ * from them lives in a temp directory that is created once per fork, so the numbers do not
+ * depend on the machine beyond the JDK.
+ */
+final class Fixtures {
+    private static File dir;
+    private static File androidJar;
+
+    private Fixtures() {}
+
+    static synchronized File dir() throws IOException {
+        if (dir == null) {
+            dir = Files.createTempDirectory("mpde-bench").toFile();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(dir)));
+        }
+        return dir;
+    }
+
+    static File newDir(String name) throws IOException {
+        File file = new File(dir(), name);
+        delete(file);
+        file.mkdirs();
+        return file;
+    }
+
+    /** Source of a checked-in sketch, "small" or "large". */
+    static String sketch(String name) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/sketches/" + name + ".pde")) {
+            if (in == null) {
+                throw new IOException("No sketch fixture " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /** The sketch preprocessed into a Java source directory. */
+    static File sketchSources(String name) throws IOException {
+        File sources = newDir("src-" + name);
+        String className = "Sketch" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        String java = new Preprocessor().preprocess(sketch(name), className);
+        Files.write(
+                new File(sources, className + ".java").toPath(),
+                java.getBytes(StandardCharsets.UTF_8));
+        return sources;
+    }
+
+    /**
+     * Stub android.jar: the java.* classes of the running JDK, which is the part of android.jar
+     * sketches are resolved against. Written once per fork.
+     */
+    static synchronized File androidJar() throws IOException {
+        if (androidJar != null) {
+            return androidJar;
+        }
+        File jar = new File(dir(), "android.jar");
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        Path base = jrt.getPath("/modules/java.base");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()));
+                Stream<Path> walk = Files.walk(base.resolve("java"))) {
+            for (Path path : (Iterable<Path>) walk.sorted()::iterator) {
+                if (path.toString().endsWith(".class")) {
+                    out.putNextEntry(new JarEntry(base.relativize(path).toString()));
+                    out.write(Files.readAllBytes(path));
+                }
+            }
+        }
+        androidJar = jar;
+        return jar;
+    }
+
+    /** processing-core.jar of the app, passed in by the build. */
+    static File processingCore() throws IOException {
+        File jar =
+                new File(
+                        System.getProperty(
+                                "mpde.processingCore", "../main/libs/processing-core.jar"));
+        if (!jar.isFile()) {
+            throw new IOException("processing-core.jar not found at " + jar.getAbsolutePath());
+        }
+        return jar;
+    }
+
+    static CompilerService.Request compileRequest(File sources) throws IOException {
+        return CompilerService.Request.create()
+                .classpath(androidJar().getAbsolutePath())
+                .classpath(processingCore().getAbsolutePath())
+                .source(sources.getAbsolutePath());
+    }
+
+    /** Class files of the compiled sketch by internal name. */
+    static Map<String, byte[]> classes(String name) throws IOException {
+        CompilerService.Result result =
+                CompilerService.get().compile(compileRequest(sketchSources(name)));
+        if (!result.isSuccess()) {
+            throw new IOException("Fixture " + name + " does not compile: " + result.problems);
+        }
+        return result.classes;
+    }
+
+    /**
+     * Linked resources like aapt2 writes them: a compressed manifest, a stored resources.arsc
+     * and compressed layouts next to stored images.
+     */
+    static File resourcesApk() throws IOException {
+        File apk = new File(dir(), "resources.ap_");
+        Random random = new Random(42);
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(apk.toPath()))) {
+            put(out, "AndroidManifest.xml", text(random, 4 * 1024), true);
+            put(out, "resources.arsc", text(random, 256 * 1024), false);
+            for (int i = 0; i < 40; i++) {
+                put(out, "res/layout/layout_" + i + ".xml", text(random, 2 * 1024), true);
+                put(out, "res/drawable/image_" + i + ".png", bytes(random, 16 * 1024), false);
+            }
+        }
+        return apk;
+    }
+
+    /** Files for the assets directory: text that compresses and binary data that does not. */
+    static File assetsDir() throws IOException {
+        File assets = newDir("assets");
+        Random random = new Random(7);
+        for (int i = 0; i < 10; i++) {
+            write(new File(assets, "data/level_" + i + ".json"), text(random, 32 * 1024));
+            write(new File(assets, "sounds/sound_" + i + ".ogg"), bytes(random, 64 * 1024));
+        }
+        return assets;
+    }
+
+    static File randomFile(String name, int size) throws IOException {
+        File file = new File(dir(), name);
+        write(file, bytes(new Random(size), size));
+        return file;
+    }
+
+    private static void put(ZipOutputStream out, String name, byte[] data, boolean compress)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (!compress) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            out.write(data);
+        }
+    }
+
+    private static byte[] bytes(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /** Repetitive markup, compresses about as well as real XML and JSON. */
+    private static byte[] text(Random random, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        while (out.size() < size) {
+            String line = "<item name=\"key_" + random.nextInt(500) + "\" value=\""
+                    + random.nextInt(100_000) + "\"/>\n";
+            out.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
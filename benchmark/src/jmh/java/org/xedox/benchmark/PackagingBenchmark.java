@@ -0,0 +1,82 @@
+package org.xedox.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xedox.apkbuilder.ApkWriter;
+import org.xedox.apkbuilder.util.DexingEngine;
+
+/**
+ * The zip assembly of PackageResourcesTask: linked resources copied raw, dex compressed,
+ * assets compressed in parallel, all of it aligned. Signing is left out, it needs a key the
+ * fixtures do not have.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PackagingBenchmark {
+
+    @Param({"true", "false"})
+    public boolean align;
+
+    private File resources;
+    private File assets;
+    private List<byte[]> dex;
+    private File apk;
+
+    @Setup
+    public void setup() throws Exception {
+        resources = Fixtures.resourcesApk();
+        assets = Fixtures.assetsDir();
+        DexingEngine engine = DexingEngine.get();
+        dex =
+                engine.dex(
+                        List.of(Fixtures.processingCore().toPath()),
+                        new DexingEngine.Request("21")
+                                .library(engine.archive(Fixtures.androidJar())),
+                        new DexingEngine.Diagnostics());
+        apk = new File(Fixtures.dir(), "base.apk");
+    }
+
+    @Benchmark
+    public File assemble() throws Exception {
+        try (ApkWriter writer = new ApkWriter(apk, null)) {
+            writer.setAlignEnabled(align);
+            writer.copyFrom(resources);
+            for (int i = 0; i < dex.size(); i++) {
+                String name = i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex";
+                writer.add(name, dex.get(i), true);
+            }
+            List<ApkWriter.Source> sources = new ArrayList<>();
+            addDirectory(sources, assets, "assets/");
+            writer.addAll(sources);
+            writer.finish();
+        }
+        return apk;
+    }
+
+    private static void addDirectory(List<ApkWriter.Source> sources, File dir, String prefix) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addDirectory(sources, file, prefix + file.getName() + "/");
+            } else {
+                sources.add(new ApkWriter.Source(prefix + file.getName(), file, true));
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.xedox.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xedox.mpde.build.Preprocessor;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreprocessorBenchmark {
+
+    @Param({"small", "large"})
+    public String sketch;
+
+    private String code;
+
+    @Setup
+    public void setup() throws IOException {
+        code = Fixtures.sketch(sketch);
+    }
+
+    @Benchmark
+    public String preprocess() {
+        return new Preprocessor().preprocess(code, "Sketch");
+    }
+}
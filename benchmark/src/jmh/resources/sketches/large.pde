@@ -0,0 +1,396 @@
+// Flocking, particles and a small touch UI, sized like a typical larger sketch
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+static final int BOID_COUNT = 120;
+static final int MAX_PARTICLES = 600;
+static final float NEIGHBOUR_RADIUS = 60;
+static final float SEPARATION_RADIUS = 24;
+
+Flock flock;
+ParticleSystem particles;
+List<Button> buttons = new ArrayList<Button>();
+Map<String, Float> settings = new HashMap<String, Float>();
+Stats stats = new Stats();
+boolean paused;
+boolean showTrails = true;
+int palette;
+
+public void setup() {
+    fullScreen();
+    settings.put("separation", 1.5f);
+    settings.put("alignment", 1.0f);
+    settings.put("cohesion", 1.0f);
+    settings.put("maxSpeed", 3.0f);
+    settings.put("maxForce", 0.05f);
+
+    flock = new Flock();
+    for (int i = 0; i < BOID_COUNT; i++) {
+        flock.add(new Boid(random(width), random(height)));
+    }
+    particles = new ParticleSystem();
+
+    float buttonWidth = width / 4f;
+    buttons.add(new Button("Pause", 0, height - 120, buttonWidth, 120) {
+        void pressed() {
+            paused = !paused;
+            label = paused ? "Play" : "Pause";
+        }
+    });
+    buttons.add(new Button("Trails", buttonWidth, height - 120, buttonWidth, 120) {
+        void pressed() {
+            showTrails = !showTrails;
+        }
+    });
+    buttons.add(new Button("Colors", buttonWidth * 2, height - 120, buttonWidth, 120) {
+        void pressed() {
+            palette = (palette + 1) % 3;
+        }
+    });
+    buttons.add(new Button("Reset", buttonWidth * 3, height - 120, buttonWidth, 120) {
+        void pressed() {
+            flock.clear();
+            particles.clear();
+            for (int i = 0; i < BOID_COUNT; i++) {
+                flock.add(new Boid(random(width), random(height)));
+            }
+        }
+    });
+}
+
+public void draw() {
+    long start = millis();
+    if (showTrails) {
+        noStroke();
+        fill(0, 40);
+        rect(0, 0, width, height);
+    } else {
+        background(0);
+    }
+
+    if (!paused) {
+        flock.run();
+        particles.update();
+    }
+    flock.render();
+    particles.render();
+
+    for (Button button : buttons) {
+        button.render();
+    }
+    stats.record(millis() - start);
+    stats.render(20, 40);
+}
+
+public void touchStarted() {
+    for (Button button : buttons) {
+        if (button.contains(mouseX, mouseY)) {
+            button.pressed();
+            return;
+        }
+    }
+    particles.burst(mouseX, mouseY, 40);
+    flock.add(new Boid(mouseX, mouseY));
+}
+
+int paletteColor(float t) {
+    switch (palette) {
+        case 1:
+            return color(60 + 190 * t, 120, 255 - 100 * t);
+        case 2:
+            return color(255, 255 * t, 40);
+        default:
+            return color(255 * t, 200, 255);
+    }
+}
+
+class Boid {
+    PVector position;
+    PVector velocity;
+    PVector acceleration;
+    float hue;
+
+    Boid(float x, float y) {
+        position = new PVector(x, y);
+        float angle = random(TWO_PI);
+        velocity = new PVector(cos(angle), sin(angle));
+        acceleration = new PVector(0, 0);
+        hue = random(1);
+    }
+
+    void run(List<Boid> boids) {
+        flock(boids);
+        update();
+        wrap();
+    }
+
+    void applyForce(PVector force) {
+        acceleration.add(force);
+    }
+
+    void flock(List<Boid> boids) {
+        PVector separation = separate(boids);
+        PVector alignment = align(boids);
+        PVector cohesion = cohesion(boids);
+        separation.mult(settings.get("separation"));
+        alignment.mult(settings.get("alignment"));
+        cohesion.mult(settings.get("cohesion"));
+        applyForce(separation);
+        applyForce(alignment);
+        applyForce(cohesion);
+    }
+
+    void update() {
+        velocity.add(acceleration);
+        velocity.limit(settings.get("maxSpeed"));
+        position.add(velocity);
+        acceleration.mult(0);
+    }
+
+    PVector seek(PVector target) {
+        PVector desired = PVector.sub(target, position);
+        desired.normalize();
+        desired.mult(settings.get("maxSpeed"));
+        PVector steer = PVector.sub(desired, velocity);
+        steer.limit(settings.get("maxForce"));
+        return steer;
+    }
+
+    void render() {
+        float theta = velocity.heading() + radians(90);
+        fill(paletteColor(hue));
+        stroke(255, 80);
+        pushMatrix();
+        translate(position.x, position.y);
+        rotate(theta);
+        beginShape(TRIANGLES);
+        vertex(0, -8);
+        vertex(-4, 8);
+        vertex(4, 8);
+        endShape();
+        popMatrix();
+    }
+
+    void wrap() {
+        if (position.x < -8) position.x = width + 8;
+        if (position.y < -8) position.y = height + 8;
+        if (position.x > width + 8) position.x = -8;
+        if (position.y > height + 8) position.y = -8;
+    }
+
+    PVector separate(List<Boid> boids) {
+        PVector steer = new PVector(0, 0);
+        int count = 0;
+        for (Boid other : boids) {
+            float d = PVector.dist(position, other.position);
+            if (d > 0 && d < SEPARATION_RADIUS) {
+                PVector diff = PVector.sub(position, other.position);
+                diff.normalize();
+                diff.div(d);
+                steer.add(diff);
+                count++;
+            }
+        }
+        if (count > 0) {
+            steer.div((float) count);
+        }
+        if (steer.mag() > 0) {
+            steer.normalize();
+            steer.mult(settings.get("maxSpeed"));
+            steer.sub(velocity);
+            steer.limit(settings.get("maxForce"));
+        }
+        return steer;
+    }
+
+    PVector align(List<Boid> boids) {
+        PVector sum = new PVector(0, 0);
+        int count = 0;
+        for (Boid other : boids) {
+            float d = PVector.dist(position, other.position);
+            if (d > 0 && d < NEIGHBOUR_RADIUS) {
+                sum.add(other.velocity);
+                count++;
+            }
+        }
+        if (count == 0) {
+            return new PVector(0, 0);
+        }
+        sum.div((float) count);
+        sum.normalize();
+        sum.mult(settings.get("maxSpeed"));
+        PVector steer = PVector.sub(sum, velocity);
+        steer.limit(settings.get("maxForce"));
+        return steer;
+    }
+
+    PVector cohesion(List<Boid> boids) {
+        PVector sum = new PVector(0, 0);
+        int count = 0;
+        for (Boid other : boids) {
+            float d = PVector.dist(position, other.position);
+            if (d > 0 && d < NEIGHBOUR_RADIUS) {
+                sum.add(other.position);
+                count++;
+            }
+        }
+        if (count == 0) {
+            return new PVector(0, 0);
+        }
+        sum.div(count);
+        return seek(sum);
+    }
+}
+
+class Flock {
+    List<Boid> boids = new ArrayList<Boid>();
+
+    void run() {
+        for (Boid boid : boids) {
+            boid.run(boids);
+            if (random(1) < 0.002f) {
+                particles.burst(boid.position.x, boid.position.y, 6);
+            }
+        }
+    }
+
+    void render() {
+        for (Boid boid : boids) {
+            boid.render();
+        }
+    }
+
+    void add(Boid boid) {
+        boids.add(boid);
+    }
+
+    void clear() {
+        boids.clear();
+    }
+}
+
+class Particle {
+    PVector position;
+    PVector velocity;
+    float life = 1;
+    float decay;
+    int tint;
+
+    Particle(float x, float y) {
+        position = new PVector(x, y);
+        velocity = PVector.fromAngle(random(TWO_PI));
+        velocity.mult(random(0.5f, 4));
+        decay = random(0.005f, 0.03f);
+        tint = paletteColor(random(1));
+    }
+
+    void update() {
+        velocity.y += 0.05f;
+        velocity.mult(0.99f);
+        position.add(velocity);
+        life -= decay;
+    }
+
+    boolean dead() {
+        return life <= 0 || position.y > height;
+    }
+
+    void render() {
+        noStroke();
+        fill(red(tint), green(tint), blue(tint), 255 * life);
+        float size = 2 + 6 * life;
+        ellipse(position.x, position.y, size, size);
+    }
+}
+
+class ParticleSystem {
+    List<Particle> particles = new ArrayList<Particle>();
+
+    void burst(float x, float y, int count) {
+        for (int i = 0; i < count && particles.size() < MAX_PARTICLES; i++) {
+            particles.add(new Particle(x, y));
+        }
+    }
+
+    void update() {
+        Iterator<Particle> it = particles.iterator();
+        while (it.hasNext()) {
+            Particle particle = it.next();
+            particle.update();
+            if (particle.dead()) {
+                it.remove();
+            }
+        }
+    }
+
+    void render() {
+        for (Particle particle : particles) {
+            particle.render();
+        }
+    }
+
+    void clear() {
+        particles.clear();
+    }
+}
+
+abstract class Button {
+    String label;
+    float x, y, w, h;
+
+    Button(String label, float x, float y, float w, float h) {
+        this.label = label;
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+    }
+
+    boolean contains(float px, float py) {
+        return px >= x && px < x + w && py >= y && py < y + h;
+    }
+
+    void render() {
+        stroke(255, 120);
+        fill(30, 200);
+        rect(x, y, w, h);
+        fill(255);
+        textSize(h / 3);
+        textAlign(CENTER, CENTER);
+        text(label, x + w / 2, y + h / 2);
+    }
+
+    abstract void pressed();
+}
+
+class Stats {
+    float[] frames = new float[120];
+    int index;
+
+    void record(float millis) {
+        frames[index] = millis;
+        index = (index + 1) % frames.length;
+    }
+
+    float average() {
+        float sum = 0;
+        for (float frame : frames) {
+            sum += frame;
+        }
+        return sum / frames.length;
+    }
+
+    void render(float x, float y) {
+        fill(255);
+        textSize(28);
+        textAlign(LEFT, BASELINE);
+        text("fps " + nf(frameRate, 0, 1)
+                + "  boids " + flock.boids.size()
+                + "  particles " + particles.particles.size()
+                + "  frame " + nf(average(), 0, 2) + "ms", x, y);
+    }
+}
@@ -0,0 +1,21 @@
+// Bouncing ball
+
+float x, y;
+float dx = 4, dy = 3;
+
+public void setup() {
+    fullScreen();
+    x = width / 2;
+    y = height / 2;
+}
+
+public void draw() {
+    background(0);
+    x += dx;
+    y += dy;
+    if (x < 0 || x > width) dx = -dx;
+    if (y < 0 || y > height) dy = -dy;
+    fill(255, 120, 0);
+    noStroke();
+    ellipse(x, y, 60, 60);
+}
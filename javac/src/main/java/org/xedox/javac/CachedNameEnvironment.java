@@ -0,0 +1,105 @@
+package org.xedox.javac;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.IBinaryType;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+/**
+ * Name environment over warm classpath jars, the project's own classes kept in memory and plain
+ * class directories. Jar lookups go to the cached {@link ClasspathJar} indices; directories are
+ * read on every lookup since their contents change between builds.
+ */
+final class CachedNameEnvironment implements INameEnvironment {
+
+    private final List<ClasspathJar> jars;
+    private final List<File> directories;
+    private final NavigableMap<String, byte[]> classes;
+
+    CachedNameEnvironment(
+            List<ClasspathJar> jars,
+            List<File> directories,
+            NavigableMap<String, byte[]> classes) {
+        this.jars = jars;
+        this.directories = directories;
+        this.classes = classes != null ? classes : Collections.emptyNavigableMap();
+    }
+
+    @Override
+    public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+        return find(new String(CharOperation.concatWith(compoundTypeName, '/')));
+    }
+
+    @Override
+    public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+        if (packageName == null || packageName.length == 0) {
+            return find(new String(typeName));
+        }
+        return find(new String(CharOperation.concatWith(packageName, typeName, '/')));
+    }
+
+    private NameEnvironmentAnswer find(String internalName) {
+        for (ClasspathJar jar : jars) {
+            IBinaryType type = jar.findType(internalName);
+            if (type != null) {
+                return new NameEnvironmentAnswer(type, null);
+            }
+        }
+        byte[] bytes = classes.get(internalName);
+        if (bytes != null) {
+            try {
+                char[] fileName = (internalName + ".class").toCharArray();
+                return new NameEnvironmentAnswer(new ClassFileReader(bytes, fileName), null);
+            } catch (ClassFormatException e) {
+                return null;
+            }
+        }
+        for (File dir : directories) {
+            File classFile = new File(dir, internalName + ".class");
+            if (classFile.isFile()) {
+                try {
+                    return new NameEnvironmentAnswer(ClassFileReader.read(classFile, true), null);
+                } catch (ClassFormatException | IOException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+        String name =
+                parentPackageName == null || parentPackageName.length == 0
+                        ? new String(packageName)
+                        : new String(CharOperation.concatWith(parentPackageName, packageName, '/'));
+        for (ClasspathJar jar : jars) {
+            if (jar.isPackage(name)) {
+                return true;
+            }
+        }
+        String prefix = name + "/";
+        String next = classes.ceilingKey(prefix);
+        if (next != null && next.startsWith(prefix)) {
+            return true;
+        }
+        for (File dir : directories) {
+            if (new File(dir, name).isDirectory()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void cleanup() {
+        // Jars stay open for the next compilation
+    }
+}
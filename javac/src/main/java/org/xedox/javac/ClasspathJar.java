@@ -0,0 +1,83 @@
+package org.xedox.javac;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.IBinaryType;
+
+/**
+ * Open classpath jar with its package index and the library types read from it so far. Kept
+ * by {@link CompilerService} for the whole session, so android.jar is indexed once.
+ */
+final class ClasspathJar {
+
+    final File file;
+    final long length;
+    final long lastModified;
+
+    private final ZipFile zip;
+    private final Set<String> packages = new HashSet<>();
+    private final Map<String, IBinaryType> types = new ConcurrentHashMap<>();
+
+    ClasspathJar(File file) throws IOException {
+        this.file = file;
+        this.length = file.length();
+        this.lastModified = file.lastModified();
+        this.zip = new ZipFile(file);
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            int slash = name.lastIndexOf('/');
+            while (slash > 0) {
+                String pkg = name.substring(0, slash);
+                if (!packages.add(pkg)) break;
+                slash = pkg.lastIndexOf('/');
+            }
+        }
+    }
+
+    boolean isStale() {
+        return file.length() != length || file.lastModified() != lastModified;
+    }
+
+    boolean isPackage(String name) {
+        return packages.contains(name);
+    }
+
+    /** Binary type for an internal name such as java/lang/String, or null. */
+    IBinaryType findType(String internalName) {
+        IBinaryType type = types.get(internalName);
+        if (type != null) {
+            return type;
+        }
+        String entryName = internalName + ".class";
+        if (zip.getEntry(entryName) == null) {
+            return null;
+        }
+        try {
+            // Fully initialized readers do not keep the class bytes and are safe to share
+            type = ClassFileReader.read(zip, entryName, true);
+        } catch (ClassFormatException | IOException e) {
+            return null;
+        }
+        if (type != null) {
+            types.put(internalName, type);
+        }
+        return type;
+    }
+
+    void close() {
+        try {
+            zip.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
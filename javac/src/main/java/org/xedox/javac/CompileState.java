@@ -0,0 +1,92 @@
+package org.xedox.javac;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Persisted state of an incremental compilation: for every compilation unit its content hash,
+ * the types it produced and the simple names it references.
+ */
+final class CompileState {
+
+    static final class Unit {
+        String hash = "";
+        final Set<String> types = new TreeSet<>();
+        final Set<String> references = new TreeSet<>();
+    }
+
+    String options = "";
+    final Map<String, Unit> units = new TreeMap<>();
+
+    static CompileState load(File file) {
+        CompileState state = new CompileState();
+        if (!file.exists()) {
+            return state;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            return state;
+        }
+        state.options = props.getProperty("options", "");
+        for (String key : props.stringPropertyNames()) {
+            if (!key.startsWith("unit.") || !key.endsWith(".hash")) continue;
+            String path = key.substring("unit.".length(), key.length() - ".hash".length());
+            Unit unit = new Unit();
+            unit.hash = props.getProperty(key);
+            split(props.getProperty("unit." + path + ".types"), unit.types);
+            split(props.getProperty("unit." + path + ".refs"), unit.references);
+            state.units.put(path, unit);
+        }
+        return state;
+    }
+
+    void save(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("options", options);
+        for (Map.Entry<String, Unit> entry : units.entrySet()) {
+            String prefix = "unit." + entry.getKey();
+            Unit unit = entry.getValue();
+            props.setProperty(prefix + ".hash", unit.hash);
+            props.setProperty(prefix + ".types", String.join(",", unit.types));
+            props.setProperty(prefix + ".refs", String.join(",", unit.references));
+        }
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "Incremental compilation state");
+        }
+    }
+
+    private static void split(String value, Set<String> into) {
+        if (value == null || value.isEmpty()) return;
+        for (String item : value.split(",")) {
+            into.add(item);
+        }
+    }
+
+    static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package org.xedox.javac;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.Compiler;
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblem;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
+
+/**
+ * Long-lived ECJ service. Unlike {@link JavaCompiler}, which starts the batch compiler from
+ * scratch on every call, it keeps the classpath jars open and indexed together with the
+ * library types already read from them, so a rebuild only pays for the project sources.
+ */
+public final class CompilerService {
+
+    private static final int MAX_ROUNDS = 8;
+
+    private static CompilerService instance;
+
+    private final Map<String, ClasspathJar> jars = new HashMap<>();
+    /** Class files of every incremental destination, mirrored in memory for the session. */
+    private final Map<String, NavigableMap<String, byte[]>> outputs = new HashMap<>();
+
+    private CompilerService() {}
+
+    public static synchronized CompilerService get() {
+        if (instance == null) {
+            instance = new CompilerService();
+        }
+        return instance;
+    }
+
+    public synchronized Result compile(Request request) throws IOException {
+        List<ClasspathJar> classpathJars = new ArrayList<>();
+        List<File> classpathDirs = new ArrayList<>();
+        for (File entry : request.classpath) {
+            if (entry.isDirectory()) {
+                classpathDirs.add(entry);
+            } else if (entry.isFile()) {
+                classpathJars.add(jar(entry));
+            }
+        }
+
+        Result result = new Result();
+        Map<String, File> files = new TreeMap<>();
+        for (File source : request.sources) {
+            collectSources(source, files);
+        }
+        Map<String, char[]> contents = new TreeMap<>();
+        Map<String, String> hashes = new HashMap<>();
+        for (Map.Entry<String, File> source : files.entrySet()) {
+            byte[] bytes = Files.readAllBytes(source.getValue().toPath());
+            result.bytesRead += bytes.length;
+            contents.put(source.getKey(), new String(bytes, StandardCharsets.UTF_8).toCharArray());
+            hashes.put(source.getKey(), CompileState.hash(bytes));
+        }
+        for (Map.Entry<String, String> source : request.memorySources.entrySet()) {
+            contents.put(source.getKey(), source.getValue().toCharArray());
+            byte[] bytes = source.getValue().getBytes(StandardCharsets.UTF_8);
+            hashes.put(source.getKey(), CompileState.hash(bytes));
+        }
+        Set<String> sources = contents.keySet();
+        if (request.stateFile == null || request.destination == null) {
+            compileUnits(sources, contents, request, classpathJars, classpathDirs, null, result);
+            result.bytesWritten += writeClasses(request.destination, result.classes);
+            result.outputClasses = Collections.unmodifiableMap(result.classes);
+            return result;
+        }
+
+        CompileState state = CompileState.load(request.stateFile);
+        String options = request.fingerprint(classpathJars);
+        Set<String> pending = new TreeSet<>();
+        Map<String, String> changedTypes = new HashMap<>();
+        String outputKey = request.destination.getAbsolutePath();
+        NavigableMap<String, byte[]> output = outputs.get(outputKey);
+        if (!options.equals(state.options)) {
+            deleteClasses(request.destination);
+            output = new TreeMap<>();
+            state.units.clear();
+            state.options = options;
+            pending.addAll(sources);
+        } else {
+            if (output == null) {
+                output = new TreeMap<>();
+                loadClasses(request.destination, "", output);
+            }
+            for (String path : new ArrayList<>(state.units.keySet())) {
+                if (!sources.contains(path)) {
+                    CompileState.Unit removed = state.units.remove(path);
+                    for (String type : removed.types) {
+                        changedTypes.put(type, path);
+                    }
+                    deleteTypes(request.destination, removed.types, output);
+                }
+            }
+            for (String path : sources) {
+                CompileState.Unit unit = state.units.get(path);
+                if (unit == null || !unit.hash.equals(hashes.get(path))) {
+                    pending.add(path);
+                }
+            }
+        }
+
+        outputs.put(outputKey, output);
+        int rounds = 0;
+        boolean everything = false;
+        while (!everything) {
+            pending.addAll(dependents(state, changedTypes, sources));
+            if (pending.isEmpty()) break;
+            if (++rounds > MAX_ROUNDS) {
+                // Keeps finding API changes; finish with one round over every unit
+                pending.addAll(sources);
+            }
+            everything = pending.size() == sources.size();
+            result.compiledUnits.addAll(pending);
+
+            Map<String, byte[]> previous = new HashMap<>();
+            for (String path : pending) {
+                CompileState.Unit unit = state.units.get(path);
+                if (unit == null) continue;
+                for (String type : unit.types) {
+                    byte[] bytes = output.get(type);
+                    if (bytes != null) previous.put(type, bytes);
+                }
+                deleteTypes(request.destination, unit.types, output);
+            }
+
+            Result round = new Result();
+            compileUnits(pending, contents, request, classpathJars, classpathDirs, output, round);
+            result.bytesWritten += writeClasses(request.destination, round.classes);
+            output.putAll(round.classes);
+            result.classes.putAll(round.classes);
+            result.problems.addAll(round.problems);
+            result.parseTime += round.parseTime;
+            result.resolveTime += round.resolveTime;
+            result.analyzeTime += round.analyzeTime;
+            result.generateTime += round.generateTime;
+
+            changedTypes = new HashMap<>();
+            for (String path : pending) {
+                CompileState.Unit unit = new CompileState.Unit();
+                CompileState.Unit produced = round.units.get(path);
+                if (produced != null) {
+                    unit.types.addAll(produced.types);
+                    unit.references.addAll(produced.references);
+                }
+                unit.hash = round.failedUnits.contains(path) ? "" : hashes.get(path);
+                CompileState.Unit old = state.units.put(path, unit);
+                if (old != null) {
+                    for (String type : old.types) {
+                        if (!unit.types.contains(type)) changedTypes.put(type, path);
+                    }
+                }
+                for (String type : unit.types) {
+                    if (hasStructuralChanges(previous.get(type), round.classes.get(type))) {
+                        changedTypes.put(type, path);
+                    }
+                }
+            }
+            pending = new TreeSet<>();
+        }
+        state.save(request.stateFile);
+        result.outputClasses = Collections.unmodifiableMap(new TreeMap<>(output));
+        return result;
+    }
+
+    private void compileUnits(
+            Collection<String> paths,
+            Map<String, char[]> contents,
+            Request request,
+            List<ClasspathJar> classpathJars,
+            List<File> classpathDirs,
+            NavigableMap<String, byte[]> output,
+            Result result) {
+        List<ICompilationUnit> units = new ArrayList<>();
+        for (String path : paths) {
+            units.add(new CompilationUnit(contents.get(path), path, "UTF-8"));
+        }
+        ICompilerRequestor requestor =
+                compilationResult -> {
+                    String path = new String(compilationResult.getFileName());
+                    if (compilationResult.hasProblems()) {
+                        for (CategorizedProblem problem : compilationResult.getAllProblems()) {
+                            result.problems.add(new Problem(problem));
+                        }
+                    }
+                    CompileState.Unit unit = new CompileState.Unit();
+                    collectReferences(compilationResult, unit.references);
+                    if (compilationResult.hasErrors()) {
+                        result.failedUnits.add(path);
+                    } else {
+                        for (ClassFile classFile : compilationResult.getClassFiles()) {
+                            String name = new String(classFile.fileName());
+                            result.classes.put(name, classFile.getBytes());
+                            unit.types.add(name);
+                        }
+                    }
+                    result.units.put(path, unit);
+                };
+
+        CompilerOptions options = new CompilerOptions(request.options());
+        options.produceReferenceInfo = true;
+        Compiler compiler =
+                new Compiler(
+                        new CachedNameEnvironment(classpathJars, classpathDirs, output),
+                        DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+                        options,
+                        requestor,
+                        new DefaultProblemFactory(Locale.getDefault()));
+        compiler.compile(units.toArray(new ICompilationUnit[0]));
+        result.parseTime += compiler.stats.parseTime;
+        result.resolveTime += compiler.stats.resolveTime;
+        result.analyzeTime += compiler.stats.analyzeTime;
+        result.generateTime += compiler.stats.generateTime;
+    }
+
+    private static void collectReferences(CompilationResult result, Set<String> references) {
+        if (result.simpleNameReferences != null) {
+            for (char[] name : result.simpleNameReferences) {
+                references.add(new String(name));
+            }
+        }
+        if (result.qualifiedReferences != null) {
+            for (char[][] name : result.qualifiedReferences) {
+                references.add(new String(name[name.length - 1]));
+            }
+        }
+    }
+
+    /**
+     * Units that reference a simple name of one of the changed types. Changed types map to the
+     * unit that produced them, a unit is never its own dependent.
+     */
+    private static Set<String> dependents(
+            CompileState state, Map<String, String> changedTypes, Set<String> sources) {
+        Map<String, Set<String>> names = new HashMap<>();
+        for (Map.Entry<String, String> type : changedTypes.entrySet()) {
+            String name = type.getKey();
+            for (String part : name.substring(name.lastIndexOf('/') + 1).split("\\$")) {
+                if (!part.isEmpty()) {
+                    names.computeIfAbsent(part, k -> new HashSet<>()).add(type.getValue());
+                }
+            }
+        }
+        Set<String> dependents = new TreeSet<>();
+        if (names.isEmpty()) return dependents;
+        for (Map.Entry<String, CompileState.Unit> entry : state.units.entrySet()) {
+            String path = entry.getKey();
+            if (!sources.contains(path)) continue;
+            for (String reference : entry.getValue().references) {
+                Set<String> producers = names.get(reference);
+                if (producers != null && (producers.size() > 1 || !producers.contains(path))) {
+                    dependents.add(path);
+                    break;
+                }
+            }
+        }
+        return dependents;
+    }
+
+    private static boolean hasStructuralChanges(byte[] previous, byte[] current) {
+        if (previous == null || current == null) {
+            return true;
+        }
+        try {
+            return new ClassFileReader(previous, null).hasStructuralChanges(current);
+        } catch (ClassFormatException e) {
+            return true;
+        }
+    }
+
+    /** Returns the number of bytes written. */
+    private static long writeClasses(File destination, Map<String, byte[]> classes)
+            throws IOException {
+        if (destination == null) return 0;
+        long written = 0;
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            File classFile = new File(destination, entry.getKey() + ".class");
+            classFile.getParentFile().mkdirs();
+            Files.write(classFile.toPath(), entry.getValue());
+            written += entry.getValue().length;
+        }
+        return written;
+    }
+
+    private static void deleteTypes(
+            File destination, Collection<String> types, Map<String, byte[]> output) {
+        for (String type : types) {
+            new File(destination, type + ".class").delete();
+            output.remove(type);
+        }
+    }
+
+    private static void loadClasses(File dir, String prefix, Map<String, byte[]> into)
+            throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory()) {
+                loadClasses(child, prefix + name + "/", into);
+            } else if (name.endsWith(".class")) {
+                String type = prefix + name.substring(0, name.length() - ".class".length());
+                into.put(type, Files.readAllBytes(child.toPath()));
+            }
+        }
+    }
+
+    private static void deleteClasses(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                deleteClasses(child);
+                child.delete();
+            } else if (child.getName().endsWith(".class")) {
+                child.delete();
+            }
+        }
+    }
+
+    private ClasspathJar jar(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        ClasspathJar jar = jars.get(key);
+        if (jar != null && !jar.isStale()) {
+            return jar;
+        }
+        if (jar != null) {
+            jar.close();
+        }
+        jar = new ClasspathJar(file);
+        jars.put(key, jar);
+        return jar;
+    }
+
+    private static void collectSources(File source, Map<String, File> sources) {
+        if (source.isDirectory()) {
+            File[] children = source.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    collectSources(child, sources);
+                }
+            }
+        } else if (source.getName().endsWith(".java")) {
+            sources.put(source.getPath(), source);
+        }
+    }
+
+    /** Drops every cached jar, e.g. after the toolchain was reinstalled. */
+    public synchronized void reset() {
+        for (ClasspathJar jar : jars.values()) {
+            jar.close();
+        }
+        jars.clear();
+        outputs.clear();
+    }
+
+    public static class Request {
+        private final List<File> classpath = new ArrayList<>();
+        private final List<File> sources = new ArrayList<>();
+        private final Map<String, String> memorySources = new TreeMap<>();
+        private File destination;
+        private File stateFile;
+        private String version = "17";
+        private boolean debugInfo = true;
+
+        public static Request create() {
+            return new Request();
+        }
+
+        public Request classpath(String entry) {
+            Objects.requireNonNull(entry, "Classpath entry cannot be null");
+            classpath.add(new File(entry));
+            return this;
+        }
+
+        /** A .java file or a directory that is searched for .java files. */
+        public Request source(String path) {
+            sources.add(new File(Objects.requireNonNull(path, "Source path cannot be null")));
+            return this;
+        }
+
+        /**
+         * A compilation unit that only exists in memory. The path names it in problems and in
+         * the incremental state, nothing is read from or written to it.
+         */
+        public Request source(String path, String contents) {
+            memorySources.put(
+                    Objects.requireNonNull(path, "Source path cannot be null"),
+                    Objects.requireNonNull(contents, "Source contents cannot be null"));
+            return this;
+        }
+
+        public Request destination(File dir) {
+            this.destination = dir;
+            return this;
+        }
+
+        /**
+         * Compiles incrementally: only changed units and the units that reference a type whose
+         * API changed are recompiled. The state is kept in the given file between builds.
+         */
+        public Request incremental(File stateFile) {
+            this.stateFile = stateFile;
+            return this;
+        }
+
+        public Request version(String version) {
+            this.version = Objects.requireNonNull(version, "Java version cannot be null");
+            return this;
+        }
+
+        public Request debugInfo(boolean debugInfo) {
+            this.debugInfo = debugInfo;
+            return this;
+        }
+
+        Map<String, String> options() {
+            Map<String, String> options = new HashMap<>();
+            options.put(CompilerOptions.OPTION_Source, version);
+            options.put(CompilerOptions.OPTION_Compliance, version);
+            options.put(CompilerOptions.OPTION_TargetPlatform, version);
+            options.put(CompilerOptions.OPTION_Encoding, "UTF-8");
+            options.put(CompilerOptions.OPTION_Process_Annotations, CompilerOptions.DISABLED);
+            String debug = debugInfo ? CompilerOptions.GENERATE : CompilerOptions.DO_NOT_GENERATE;
+            options.put(CompilerOptions.OPTION_LineNumberAttribute, debug);
+            options.put(CompilerOptions.OPTION_SourceFileAttribute, debug);
+            options.put(CompilerOptions.OPTION_LocalVariableAttribute, debug);
+            return options;
+        }
+
+        String fingerprint(List<ClasspathJar> jars) {
+            StringBuilder sb = new StringBuilder(new TreeMap<>(options()).toString());
+            for (ClasspathJar jar : jars) {
+                sb.append('|').append(jar.file).append(':').append(jar.length);
+                sb.append(':').append(jar.lastModified);
+            }
+            for (File entry : classpath) {
+                if (entry.isDirectory()) sb.append('|').append(entry);
+            }
+            return CompileState.hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public static class Result {
+        /** Class bytes by internal name, e.g. com/example/app/MainActivity. */
+        public final Map<String, byte[]> classes = new LinkedHashMap<>();
+        public final List<Problem> problems = new ArrayList<>();
+        /**
+         * Every class of the destination after this call, served from memory, so consumers do
+         * not have to read the class files back.
+         */
+        public Map<String, byte[]> outputClasses = Collections.emptyMap();
+        /** Units that went through the compiler in this call. */
+        public final Set<String> compiledUnits = new TreeSet<>();
+        /** Milliseconds ECJ spent in each phase, over every round. */
+        public long parseTime, resolveTime, analyzeTime, generateTime;
+        /** Source bytes read and class bytes written. */
+        public long bytesRead, bytesWritten;
+
+        final Map<String, CompileState.Unit> units = new HashMap<>();
+        final Set<String> failedUnits = new HashSet<>();
+
+        public boolean isSuccess() {
+            for (Problem problem : problems) {
+                if (problem.error) return false;
+            }
+            return true;
+        }
+    }
+
+    public static class Problem {
+        public final boolean error;
+        public final String file;
+        public final int line;
+        /** 1-based, 0 when unknown. */
+        public final int column;
+        public final String message;
+
+        Problem(CategorizedProblem problem) {
+            this.error = problem.isError();
+            this.file = new String(problem.getOriginatingFileName());
+            this.line = problem.getSourceLineNumber();
+            this.column =
+                    problem instanceof DefaultProblem
+                            ? ((DefaultProblem) problem).getSourceColumnNumber()
+                            : 0;
+            this.message = problem.getMessage();
+        }
+
+        @Override
+        public String toString() {
+            return (error ? "ERROR" : "WARNING")
+                    + " in " + file + " (at line " + line + ")\n\t" + message;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.app.Application;
 import android.content.Context;
 import androidx.appcompat.app.AppCompatDelegate;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import org.xedox.mpde.build.ToolchainInstaller;
 import org.xedox.mpde.editor.SoraEditorManager;
 import org.xedox.utils.DialogBuilder;
 import org.xedox.utils.ErrorDialog;
@@ -26,6 +27,7 @@ public class AppCore extends Application {
         TEXTMATE.mkdirs();
         PROJECTS.mkdirs();
         DialogBuilder.builderType = MaterialAlertDialogBuilder.class;
+        ToolchainInstaller.get(this, HOME).install();
     }
     
     public static void initFromActivity(EditorActivity activity) {
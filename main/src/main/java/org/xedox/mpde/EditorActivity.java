@@ -125,10 +125,11 @@ public class EditorActivity extends AppCompatActivity {
         } else if (id == R.id.run) {
             try {
                 if (buildType == "App") {
-                    if (buildTask == null)
-                    toolsView.getBuildOutput().output.setText("");
+                    if (buildTask == null) {
+                        toolsView.getBuildOutput().output.setText("");
                         buildTask =
                                 new BuildTask(this, toolsView.getBuildOutput().getPrintStream());
+                    }
                     buildTask.startBuild(project);
                 }
             } catch (Exception err) {
@@ -4,56 +4,52 @@ import android.content.Context;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
+import org.xedox.apkbuilder.AndroidBuildEnvironment;
 import org.xedox.apkbuilder.ApkBuilder;
+import org.xedox.apkbuilder.util.BuildState;
+import org.xedox.apkbuilder.util.SourceMap;
+import org.xedox.apkbuilder.util.TaskIO;
+import org.xedox.apkbuilder.util.TaskManager;
 import org.xedox.mpde.AppCore;
 import org.xedox.mpde.project.Project;
+import org.xedox.mpde.project.ProjectConfig;
+import org.xedox.utils.Template;
 import org.xedox.utils.io.Assets;
 import org.xedox.utils.io.FileX;
 
 public class BuildTask {
-    private static final String[] REQUIRED_LIBS = {
-        "android.jar", 
+    private static final String[] PACKAGED_LIBS = {
         "appcompat-1.7.1.aar", 
         "processing-core.jar"
     };
+    private static final String MANIFEST_TEMPLATE = "build/temp.AndroidManifest.xml";
 
     private final ApkBuilder apkBuilder;
     private final Context context;
     private final PrintStream out;
-    private final Preprocessor preprocessor;
+    private final SketchAssembler sketchAssembler;
+    private final ToolchainInstaller toolchain;
     private final AtomicBoolean isBuilding = new AtomicBoolean(false);
 
     public BuildTask(Context context, PrintStream out) {
         this.context = Objects.requireNonNull(context, "Context cannot be null");
         this.out = Objects.requireNonNull(out, "PrintStream cannot be null");
-        this.apkBuilder = new ApkBuilder(context, out);
-        this.preprocessor = new Preprocessor();
-        copyRequiredResources();
-    }
-
-    private void copyRequiredResources() {
-        Assets ass = Assets.from(context);
-        File homeDir = AppCore.homeDir().toFile();
-        
-        for (String lib : REQUIRED_LIBS) {
-            try {
-                FileX destFile = new FileX(homeDir, lib);
-                if (!destFile.exists()) {
-                    out.println("Copying " + lib);
-                    ass.copyFile("build/" + lib, destFile);
-                }
-            } catch (Exception err) {
-                out.println("Failed to copy " + lib + ": " + err.getMessage());
-                err.printStackTrace(out);
-            }
-        }
+        this.apkBuilder = new ApkBuilder(new AndroidBuildEnvironment(context), out);
+        this.sketchAssembler = new SketchAssembler();
+        this.toolchain = ToolchainInstaller.get(context, AppCore.homeDir().toFile());
+        toolchain.install();
     }
 
     public void startBuild(Project project) {
@@ -61,6 +57,7 @@ public class BuildTask {
             out.println("Build already in progress");
             return;
         }
+        apkBuilder.clearStopRequest();
 
         new Thread(() -> {
             try {
@@ -78,12 +75,56 @@ public class BuildTask {
         Objects.requireNonNull(project, "Project cannot be null");
         out.println("Starting build for project: " + project.path.getName());
 
+        // Usually installed since app start, the first build after an update may wait here
+        toolchain.await();
+        if (apkBuilder.isStopRequested()) {
+            return;
+        }
         prepareBuildDir(project);
-        processManifest(project);
-        processSources(project);
+        // One snapshot for the whole build, edits take effect with the next one
+        ProjectConfig projectConfig = project.getConfig();
+        ApkBuilder.BuildConfig config = projectConfig.toBuildConfig();
+        FileX manifest = new FileX(project.buildDir, "AndroidManifest.xml");
+        FileX buildSrcDir = new FileX(project.buildDir, "src");
+        config.manifestPath = manifest.getAbsolutePath();
+        File homeDir = AppCore.homeDir().toFile();
+        if (config.libraries.isEmpty()) {
+            for (String lib : PACKAGED_LIBS) {
+                config.libraries.add(new File(homeDir, lib).getAbsolutePath());
+            }
+        }
+        if (config.libraryDexCacheDir == null) {
+            config.libraryDexCacheDir = new File(homeDir, "predexed").getAbsolutePath();
+        }
+
+        Template manifestTemplate = Assets.from(context).readTemplate(MANIFEST_TEMPLATE);
+        apkBuilder.addPreparationTask(
+                "Processing manifest...",
+                new TaskManager.Task() {
+                    @Override
+                    public void declare(TaskIO io) {
+                        // The template changes with app updates, build.properties stays the same
+                        io.input(project.buildConfigPath)
+                                .output(manifest)
+                                .property(
+                                        "template",
+                                        BuildState.hash(
+                                                manifestTemplate
+                                                        .getText()
+                                                        .getBytes(StandardCharsets.UTF_8)));
+                    }
+
+                    @Override
+                    public void run() throws Exception {
+                        processManifest(projectConfig, config, manifestTemplate, manifest);
+                    }
+                });
+        apkBuilder.addPreparationTask(
+                "Preprocessing sources...",
+                () -> processSources(project, config, buildSrcDir));
 
         out.println("Building APK...");
-        apkBuilder.build(project.getBuildConfig());
+        apkBuilder.build(config);
         out.println("Build completed successfully");
     }
 
@@ -93,7 +134,6 @@ public class BuildTask {
             throw new IOException("Failed to create build directory: " + buildDir);
         }
 
-        deleteDirectory(new FileX(buildDir, "src"));
         deleteDirectory(new FileX(buildDir, "res"));
     }
 
@@ -106,40 +146,42 @@ public class BuildTask {
         }
     }
 
-    private void processManifest(Project project) throws IOException {
-        ApkBuilder.BuildConfig config = project.getBuildConfig();
-        FileX manifest = new FileX(project.buildDir, "AndroidManifest.xml");
-
-        String tempManifest = Assets.from(context)
-            .readText("build/temp.AndroidManifest.xml")
-            .replace("%permissions%", getPermissionsBlock(project))
-            .replace("%app_name%", project.getProperty("appName", "MPDE App"))
-            .replace("%package%", config.appPackage)
-            .replace("%version_code%", project.getProperty("versionCode", "1"))
-            .replace("%version_name%", project.getProperty("versionName", "1.0"))
-            .replace("%min_sdk%", project.getProperty("minSdk", "21"))
-            .replace("%target_sdk%", project.getProperty("targetSdk", "33"))
-            .replace("%max_sdk%", project.getProperty("targetSdk", "33"));
-
-        manifest.write(tempManifest);
-        config.manifestPath = manifest.getAbsolutePath();
+    private void processManifest(
+            ProjectConfig projectConfig,
+            ApkBuilder.BuildConfig config,
+            Template template,
+            FileX manifest)
+            throws IOException {
+        Map<String, String> values = new HashMap<>();
+        values.put("permissions", getPermissionsBlock(projectConfig));
+        values.put("app_name", projectConfig.getAppName());
+        values.put("package", config.appPackage);
+        values.put("version_code", projectConfig.getVersionCode());
+        values.put("version_name", projectConfig.getVersionName());
+        values.put("min_sdk", projectConfig.getMinSdk());
+        values.put("target_sdk", projectConfig.getTargetSdk());
+        values.put("max_sdk", projectConfig.getTargetSdk());
+        manifest.writeIfChanged(template.render(values));
     }
 
-    private String getPermissionsBlock(Project project) {
+    private String getPermissionsBlock(ProjectConfig projectConfig) {
         return "";
     }
 
-    private void processSources(Project project) throws IOException {
-        FileX buildSrcDir = new FileX(project.buildDir, "src");
-        if (!buildSrcDir.exists() && !buildSrcDir.mkdirs()) {
-            throw new IOException("Failed to create source directory: " + buildSrcDir);
-        }
-
-        FileX mainActivity = new FileX(buildSrcDir, "MainActivity.java");
+    /**
+     * Merges the .pde tabs into one sketch class and puts it with the .java files into
+     * {@link ApkBuilder.BuildConfig#memorySources}; the compiler takes them from memory. The
+     * files are only written to build/src in debug mode. Problems in the sketch class are
+     * reported at their tab and line through the source map.
+     */
+    private void processSources(Project project, ApkBuilder.BuildConfig config, FileX buildSrcDir)
+            throws IOException {
+        Map<String, String> sources = new TreeMap<>();
+        Map<String, SourceMap> sourceMaps = new HashMap<>();
         String tempActivity = Assets.from(context)
-            .readText("build/MainActivity.java")
-            .replace("%package%", project.getBuildConfig().appPackage);
-        mainActivity.write(tempActivity);
+            .readTemplate("build/MainActivity.java")
+            .render(Map.of("package", config.appPackage));
+        sources.put("MainActivity.java", tempActivity);
 
         FileX srcDir = new FileX(project.path, "src");
         if (srcDir.exists()) {
@@ -154,31 +196,62 @@ public class BuildTask {
                     });
             }
 
+            List<FileX> tabs = new ArrayList<>();
             for (FileX sourceFile : sourceFiles) {
-                String relativePath = srcDir.getRelativePath(sourceFile);
-                String destPath = sourceFile.getName().endsWith(".pde") 
-                    ? relativePath.replace(".pde", ".java") 
-                    : relativePath;
-                
-                FileX destFile = new FileX(buildSrcDir, destPath);
-                destFile.getParentFile().mkdirs();
-
                 if (sourceFile.getName().endsWith(".pde")) {
-                    String javaCode = preprocessor.preprocess(sourceFile);
-                    destFile.write(javaCode);
-                    out.println("Processed PDE: " + relativePath + " -> " + destPath);
+                    tabs.add(sourceFile);
                 } else {
-                    sourceFile.copyTo(destFile);
-                    out.println("Copied Java: " + relativePath);
+                    sources.put(srcDir.getRelativePath(sourceFile), sourceFile.read());
                 }
             }
+
+            if (!tabs.isEmpty()) {
+                // All tabs become one class, named after the main tab
+                SketchAssembler.sortTabs(tabs);
+                FileX mainTab = tabs.get(0);
+                String destPath = srcDir.getRelativePath(mainTab).replace(".pde", ".java");
+                StringWriter java = new StringWriter();
+                sourceMaps.put(
+                        destPath,
+                        sketchAssembler.assemble(tabs, java, mainTab.getNameNoExtension()));
+                sources.put(destPath, java.toString());
+                out.println(
+                        "Processed " + tabs.size() + " PDE tabs -> " + destPath + " ("
+                                + sketchAssembler.getTokenizedCount() + " changed)");
+            }
+        }
+
+        config.memorySources.clear();
+        config.sourceMaps.clear();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            FileX destFile = new FileX(buildSrcDir, source.getKey());
+            config.memorySources.put(destFile.getAbsolutePath(), source.getValue());
+            SourceMap map = sourceMaps.get(source.getKey());
+            if (map != null) {
+                config.sourceMaps.put(destFile.getAbsolutePath(), map);
+            }
+        }
+
+        if (config.debugMode) {
+            for (Map.Entry<String, String> source : sources.entrySet()) {
+                FileX destFile = new FileX(buildSrcDir, source.getKey());
+                destFile.getParentFile().mkdirs();
+                destFile.writeIfChanged(source.getValue());
+            }
+            // Sources of removed tabs and files
+            try (Stream<Path> walk = Files.walk(buildSrcDir.toPath())) {
+                walk.filter(Files::isRegularFile)
+                    .filter(path -> !config.memorySources.containsKey(
+                            path.toFile().getAbsolutePath()))
+                    .forEach(path -> path.toFile().delete());
+            }
         }
     }
 
     public void stopBuild() {
+        // isBuilding stays set until the build thread has stopped
         if (isBuilding.get()) {
             apkBuilder.stopBuild();
-            isBuilding.set(false);
             out.println("Build stopped by user");
         }
     }
@@ -1,70 +1,330 @@
 package org.xedox.mpde.build;
 
-import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import org.xedox.apkbuilder.util.SourceMap;
 import org.xedox.utils.io.FileX;
 
+/**
+ * Turns a sketch into a PApplet subclass. The sketch is read once: a small scanner splits it
+ * into lines, hoists import and package statements and tracks comments, strings and text blocks
+ * so that statements inside them stay where they are. Every other line becomes part of the
+ * class body, indented by a tab.
+ */
 public class Preprocessor {
+    private static final String IMPORT = "import";
+    private static final String PACKAGE = "package";
 
-    public static Pattern importPattern =
-            Pattern.compile("^import\\s+(static\\s+)?[a-zA-Z\\d_\\.]+\\s*;$", Pattern.MULTILINE);
-    public static Pattern packagePattern = Pattern.compile("^package\\s+[\\d_\\.a-zA-Z]+\\s*;$", Pattern.MULTILINE);
-
-    private String code;
+    private static final int CODE = 0;
+    private static final int BLOCK_COMMENT = 1;
+    private static final int TEXT_BLOCK = 2;
 
     public String preprocess(String code, String className) {
-        this.code = code;
-        String packageStr = getPackage(code);
-        List<String> imports = getImports(code);
-        return buildJavaCode(code, imports, packageStr, className);
-    }
-    
-    public String preprocess(FileX file) throws IOException {
-        return preprocess(file.read(), file.getNameNoExtension());
+        StringWriter java = new StringWriter(code.length() + 256);
+        try {
+            preprocess(new StringReader(code), java, className, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return java.toString();
     }
-    
-    private String buildJavaCode(
-            String code, List<String> imports, String packageStr, String className) {
-        StringBuilder java = new StringBuilder();
-        if (packageStr != null) {
-            java.append(packageStr).append("\n\n");
+
+    public SourceMap preprocess(FileX file, Writer out) throws IOException {
+        try (Reader in = new FileReader(file)) {
+            return preprocess(in, out, file.getNameNoExtension(), file.getAbsolutePath());
         }
-        imports.add("import processing.core.*;");
-        for (String importStr : imports) {
-            java.append(importStr).append("\n");
+    }
+
+    /**
+     * Writes the class generated from the sketch to {@code out}. The body is buffered until the
+     * end of the sketch, because imports may appear anywhere in it.
+     *
+     * @param sourceFile path the returned map points at
+     * @return map from the lines written to {@code out} back to the lines of the sketch
+     */
+    public SourceMap preprocess(Reader in, Writer out, String className, String sourceFile)
+            throws IOException {
+        return write(
+                List.of(tokenize(in)), Collections.singletonList(sourceFile), out, className);
+    }
+
+    /** Splits one tab into its hoisted statements and its body. */
+    Tab tokenize(Reader in) throws IOException {
+        Scanner scanner = new Scanner();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            scanner.feed(buffer, read);
         }
-        java.append("\n");
+        scanner.end();
+        return new Tab(
+                scanner.packageStatement,
+                scanner.imports,
+                scanner.body.toString(),
+                Arrays.copyOf(scanner.bodyLines, scanner.bodyLineCount));
+    }
 
-        java.append("public class ").append(className).append(" extends PApplet {\n");
-        String[] lines = code.split("\n");
-        for (String line : lines) {
-            if (!importPattern.matcher(line).matches() && 
-                !(packageStr != null && packagePattern.matcher(line).matches())) {
-                java.append("\t").append(line).append("\n");
+    /**
+     * Writes one class with the bodies of the tabs in the given order. Imports of all tabs are
+     * hoisted, repeated ones only once.
+     *
+     * @param files path of every tab, for the source map
+     */
+    SourceMap write(List<Tab> tabs, List<String> files, Writer out, String className)
+            throws IOException {
+        SourceMap map = new SourceMap();
+        for (int i = 0; i < tabs.size(); i++) {
+            Statement statement = tabs.get(i).packageStatement;
+            if (statement != null) {
+                out.write(statement.text);
+                out.write("\n\n");
+                map.add(files.get(i), statement.line, -statement.column);
+                map.add(null, 0, 0);
+                break;
             }
         }
-        java.append("}");
-        return java.toString();
+        Set<String> imports = new HashSet<>();
+        for (int i = 0; i < tabs.size(); i++) {
+            for (Statement statement : tabs.get(i).imports) {
+                if (imports.add(statement.text)) {
+                    out.write(statement.text);
+                    out.write('\n');
+                    map.add(files.get(i), statement.line, -statement.column);
+                }
+            }
+        }
+        out.write("import processing.core.*;\n\n");
+        map.add(null, 0, 0);
+        map.add(null, 0, 0);
+        out.write("public class ");
+        out.write(className);
+        out.write(" extends PApplet {\n");
+        map.add(null, 0, 0);
+        for (int i = 0; i < tabs.size(); i++) {
+            Tab tab = tabs.get(i);
+            out.write(tab.body);
+            for (int line : tab.bodyLines) {
+                map.add(files.get(i), line, 1);
+            }
+        }
+        out.write('}');
+        map.add(null, 0, 0);
+        out.flush();
+        return map;
     }
 
-    private List<String> getImports(String code) {
-        List<String> imports = new ArrayList<>();
-        Matcher matcher = importPattern.matcher(code);
-        while (matcher.find()) {
-            imports.add(matcher.group().trim());
+    /** A tokenized tab. Immutable, so it can be cached and shared between builds. */
+    static final class Tab {
+        final Statement packageStatement;
+        final List<Statement> imports;
+        final String body;
+        /** Tab line of every body line. */
+        final int[] bodyLines;
+
+        Tab(Statement packageStatement, List<Statement> imports, String body, int[] bodyLines) {
+            this.packageStatement = packageStatement;
+            this.imports = imports;
+            this.body = body;
+            this.bodyLines = bodyLines;
         }
-        return imports;
     }
 
-    private String getPackage(String code) {
-        Matcher matcher = packagePattern.matcher(code);
-        if (matcher.find()) {
-            return matcher.group().trim();
+    static final class Statement {
+        final String text;
+        final int line;
+        final int column;
+
+        Statement(String text, int line, int column) {
+            this.text = text;
+            this.line = line;
+            this.column = column;
+        }
+    }
+
+    private static class Scanner {
+        final StringBuilder line = new StringBuilder(128);
+        final StringBuilder body = new StringBuilder();
+        final List<Statement> imports = new ArrayList<>();
+        int[] bodyLines = new int[256];
+        int bodyLineCount;
+        Statement packageStatement;
+        int lineNumber;
+        int state = CODE;
+        boolean pending;
+
+        void feed(char[] chars, int length) {
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (chars[i] == '\n') {
+                    line.append(chars, start, i - start);
+                    endLine();
+                    start = i + 1;
+                }
+            }
+            line.append(chars, start, length - start);
+            pending = line.length() > 0;
+        }
+
+        void end() {
+            if (pending) {
+                endLine();
+            }
+        }
+
+        void endLine() {
+            lineNumber++;
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(--length);
+            }
+            if (state != CODE || !hoist()) {
+                if (bodyLineCount == bodyLines.length) {
+                    bodyLines = Arrays.copyOf(bodyLines, bodyLineCount * 2);
+                }
+                bodyLines[bodyLineCount++] = lineNumber;
+                body.append('\t').append(line).append('\n');
+                scan();
+            }
+            line.setLength(0);
+            pending = false;
+        }
+
+        private boolean hoist() {
+            int start = skipSpaces(0);
+            String statement = statement(start, IMPORT);
+            if (statement != null) {
+                imports.add(new Statement(statement, lineNumber, start));
+                return true;
+            }
+            statement = statement(start, PACKAGE);
+            if (statement != null) {
+                if (packageStatement == null) {
+                    packageStatement = new Statement(statement, lineNumber, start);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /** The statement starting at {@code start} if the line holds nothing else. */
+        private String statement(int start, String keyword) {
+            if (!startsWith(start, keyword)) {
+                return null;
+            }
+            int i = skipSpaces(start + keyword.length());
+            if (i == start + keyword.length()) {
+                return null;
+            }
+            if (keyword == IMPORT && startsWith(i, "static")) {
+                int after = skipSpaces(i + 6);
+                if (after > i + 6) {
+                    i = after;
+                }
+            }
+            int name = i;
+            while (i < line.length() && isNameChar(line.charAt(i))) {
+                i++;
+            }
+            if (i == name) {
+                return null;
+            }
+            i = skipSpaces(i);
+            if (i == line.length() || line.charAt(i) != ';') {
+                return null;
+            }
+            int end = i + 1;
+            i = skipSpaces(end);
+            if (i < line.length() && !startsWith(i, "//")) {
+                return null;
+            }
+            return line.substring(start, end);
+        }
+
+        /** Follows comments and literals, so the next line knows whether it starts in code. */
+        private void scan() {
+            int length = line.length();
+            int i = 0;
+            while (i < length) {
+                char c = line.charAt(i);
+                if (state == BLOCK_COMMENT) {
+                    if (startsWith(i, "*/")) {
+                        state = CODE;
+                        i += 2;
+                    } else {
+                        i++;
+                    }
+                } else if (state == TEXT_BLOCK) {
+                    if (c == '\\') {
+                        i += 2;
+                    } else if (startsWith(i, "\"\"\"")) {
+                        state = CODE;
+                        i += 3;
+                    } else {
+                        i++;
+                    }
+                } else if (startsWith(i, "//")) {
+                    return;
+                } else if (startsWith(i, "/*")) {
+                    state = BLOCK_COMMENT;
+                    i += 2;
+                } else if (startsWith(i, "\"\"\"")) {
+                    state = TEXT_BLOCK;
+                    i += 3;
+                } else if (c == '"' || c == '\'') {
+                    i = skipLiteral(i + 1, c);
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        private int skipLiteral(int i, char quote) {
+            while (i < line.length()) {
+                char c = line.charAt(i);
+                if (c == '\\') {
+                    i += 2;
+                } else {
+                    i++;
+                    if (c == quote) {
+                        break;
+                    }
+                }
+            }
+            return i;
+        }
+
+        private int skipSpaces(int i) {
+            while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+                i++;
+            }
+            return i;
+        }
+
+        private boolean startsWith(int i, String prefix) {
+            if (i + prefix.length() > line.length()) {
+                return false;
+            }
+            for (int j = 0; j < prefix.length(); j++) {
+                if (line.charAt(i + j) != prefix.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isNameChar(char c) {
+            return Character.isJavaIdentifierPart(c) || c == '.' || c == '*';
         }
-        return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,118 @@
+package org.xedox.mpde.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.xedox.apkbuilder.util.BuildState;
+import org.xedox.apkbuilder.util.SourceMap;
+import org.xedox.apkbuilder.util.TaskManager;
+import org.xedox.apkbuilder.util.WorkerPool;
+
+/**
+ * Merges the tabs of a sketch into one PApplet class the way Processing does: imports of all
+ * tabs are hoisted and the bodies follow each other in tab order. Tabs are tokenized in
+ * parallel and kept by content hash, so assembling again after an edit only tokenizes the tabs
+ * that changed.
+ */
+public class SketchAssembler {
+    public static final String MAIN_TAB = "main.pde";
+
+    private static final WorkerPool workers =
+            new WorkerPool("PdeWorker", TaskManager.getParallelism());
+
+    private final Preprocessor preprocessor = new Preprocessor();
+    /** Tabs of the last assembly by content hash. */
+    private volatile Map<String, Preprocessor.Tab> tabs = new HashMap<>();
+    private final AtomicInteger tokenized = new AtomicInteger();
+
+    /** Processing's tab order: the main tab first, then the others by name. */
+    public static void sortTabs(List<? extends File> files) {
+        files.sort(
+                Comparator.comparing((File file) -> !file.getName().equals(MAIN_TAB))
+                        .thenComparing(File::getName)
+                        .thenComparing(File::getPath));
+    }
+
+    /**
+     * Writes the class assembled from the tabs in the given order to {@code out}.
+     *
+     * @return map from the lines written to {@code out} back to the tabs
+     */
+    public SourceMap assemble(List<? extends File> files, Writer out, String className)
+            throws IOException {
+        Map<String, Preprocessor.Tab> previous = tabs;
+        Map<String, Preprocessor.Tab> current = new ConcurrentHashMap<>();
+        tokenized.set(0);
+        List<Future<Preprocessor.Tab>> futures = new ArrayList<>(files.size());
+        ExecutorService pool = workers.get();
+        try {
+            for (File file : files) {
+                futures.add(pool.submit(() -> tokenize(file, previous, current)));
+            }
+            List<Preprocessor.Tab> result = new ArrayList<>(files.size());
+            List<String> paths = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                result.add(await(futures.get(i)));
+                paths.add(files.get(i).getAbsolutePath());
+            }
+            tabs = current;
+            return preprocessor.write(result, paths, out, className);
+        } finally {
+            for (Future<Preprocessor.Tab> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /** Tabs tokenized by the last {@link #assemble}, the others came from the cache. */
+    public int getTokenizedCount() {
+        return tokenized.get();
+    }
+
+    private Preprocessor.Tab tokenize(
+            File file,
+            Map<String, Preprocessor.Tab> previous,
+            Map<String, Preprocessor.Tab> current)
+            throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        String hash = BuildState.hash(data);
+        Preprocessor.Tab tab = previous.get(hash);
+        if (tab == null) {
+            tab =
+                    preprocessor.tokenize(
+                            new StringReader(new String(data, StandardCharsets.UTF_8)));
+            tokenized.incrementAndGet();
+        }
+        current.put(hash, tab);
+        return tab;
+    }
+
+    private static Preprocessor.Tab await(Future<Preprocessor.Tab> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while preprocessing the sketch");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to preprocess the sketch", cause);
+        }
+    }
+}
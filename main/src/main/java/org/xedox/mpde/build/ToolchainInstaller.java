@@ -0,0 +1,210 @@
+package org.xedox.mpde.build;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.xedox.apkbuilder.util.BuildState;
+
+/**
+ * Copies the libraries builds compile and package against out of the APK, in the background
+ * from app start. build/toolchain.sha256, generated by the app build, lists every library with
+ * its size and SHA-256; copies are verified against it, so a partial or corrupt copy is
+ * replaced and a new app version replaces the libraries that changed. Verified copies are
+ * remembered by length and modification time and not hashed again.
+ */
+public final class ToolchainInstaller {
+    public static final String MANIFEST = "build/toolchain.sha256";
+    private static final String STAMP = "toolchain.installed";
+
+    private static ToolchainInstaller instance;
+
+    private final AssetManager assets;
+    private final File dir;
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "ToolchainInstaller");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+    private Future<Void> installation;
+
+    private ToolchainInstaller(Context context, File dir) {
+        this.assets = context.getApplicationContext().getAssets();
+        this.dir = dir;
+    }
+
+    public static synchronized ToolchainInstaller get(Context context, File dir) {
+        if (instance == null) {
+            instance = new ToolchainInstaller(context, dir);
+        }
+        return instance;
+    }
+
+    /** Starts installing unless it is running or done. A failed installation starts again. */
+    public synchronized Future<Void> install() {
+        if (installation == null) {
+            installation =
+                    executor.submit(
+                            () -> {
+                                try {
+                                    installAll();
+                                } catch (Exception e) {
+                                    synchronized (this) {
+                                        installation = null;
+                                    }
+                                    throw e;
+                                }
+                                return null;
+                            });
+        }
+        return installation;
+    }
+
+    /** Waits for the toolchain, installing it first if needed. */
+    public void await() throws IOException {
+        try {
+            install().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while installing the toolchain");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to install the toolchain", cause);
+        }
+    }
+
+    private void installAll() throws IOException {
+        dir.mkdirs();
+        File stampFile = new File(dir, STAMP);
+        Properties stamps = new Properties();
+        if (stampFile.isFile()) {
+            try (InputStream in = new FileInputStream(stampFile)) {
+                stamps.load(in);
+            } catch (IOException e) {
+                stamps.clear();
+            }
+        }
+
+        for (Library library : readManifest()) {
+            File target = new File(dir, library.name);
+            if (!isInstalled(library, target, stamps.getProperty(library.name))) {
+                extract(library, target);
+            }
+            stamps.setProperty(
+                    library.name, target.length() + ":" + target.lastModified() + ":"
+                            + library.sha256);
+        }
+
+        try (OutputStream out = new FileOutputStream(stampFile)) {
+            stamps.store(out, null);
+        }
+    }
+
+    private static boolean isInstalled(Library library, File target, String stamp)
+            throws IOException {
+        if (target.length() != library.size) {
+            return false;
+        }
+        if ((target.length() + ":" + target.lastModified() + ":" + library.sha256)
+                .equals(stamp)) {
+            return true;
+        }
+        return BuildState.hash(target).equals(library.sha256);
+    }
+
+    private void extract(Library library, File target) throws IOException {
+        String asset = "build/" + library.name;
+        File temp = new File(dir, library.name + ".tmp");
+        try {
+            copyStored(asset, temp);
+        } catch (FileNotFoundException e) {
+            // Compressed in the APK, only streaming works
+            try (InputStream in = assets.open(asset);
+                    OutputStream out = new FileOutputStream(temp)) {
+                byte[] buffer = new byte[65536];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        }
+        String hash = BuildState.hash(temp);
+        if (temp.length() != library.size || !hash.equals(library.sha256)) {
+            temp.delete();
+            throw new IOException("Corrupt toolchain library in the APK: " + library.name);
+        }
+        target.delete();
+        if (!temp.renameTo(target)) {
+            throw new IOException("Failed to install " + target);
+        }
+    }
+
+    /** Copies an uncompressed asset straight from its range of the APK. */
+    private void copyStored(String asset, File target) throws IOException {
+        try (AssetFileDescriptor fd = assets.openFd(asset);
+                FileChannel in = fd.createInputStream().getChannel();
+                FileChannel out = new FileOutputStream(target).getChannel()) {
+            long length = fd.getLength();
+            long position = 0;
+            while (position < length) {
+                long copied =
+                        in.transferTo(fd.getStartOffset() + position, length - position, out);
+                if (copied <= 0) {
+                    throw new IOException("Unexpected end of " + asset);
+                }
+                position += copied;
+            }
+        }
+    }
+
+    private List<Library> readManifest() throws IOException {
+        List<Library> libraries = new ArrayList<>();
+        try (BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(assets.open(MANIFEST), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 3) {
+                    libraries.add(new Library(parts[0], Long.parseLong(parts[1]), parts[2]));
+                }
+            }
+        }
+        return libraries;
+    }
+
+    private static class Library {
+        final String name;
+        final long size;
+        final String sha256;
+
+        Library(String name, long size, String sha256) {
+            this.name = name;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+}
@@ -12,6 +12,7 @@ import io.github.rosemoe.sora.text.Content;
 import io.github.rosemoe.sora.widget.CodeEditor;
 import io.github.rosemoe.sora.widget.component.EditorTextActionWindow;
 import io.github.rosemoe.sora.widget.schemes.EditorColorScheme;
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
 import java.util.HashSet;
 import org.xedox.mpde.R;
@@ -71,10 +72,14 @@ public class SoraEditor extends CodeEditor {
     }
 
 
+    /**
+     * Collects printed text and hands it to the editor in one post per flush. Strings are
+     * appended as they are, only raw byte writes are decoded.
+     */
     public static class PrintStream extends java.io.PrintStream {
         private final SoraEditor editor;
         private final StringBuilder buffer = new StringBuilder();
-        private static final int FLUSH_LIMIT = 1024;
+        private static final int FLUSH_LIMIT = 8192;
 
         public PrintStream(SoraEditor editor) {
             super(System.out);
@@ -82,34 +87,33 @@ public class SoraEditor extends CodeEditor {
         }
 
         @Override
-        public void write(int b) {
-            buffer.append((char) b);
+        public synchronized void write(int b) {
+            buffer.append((char) (b & 0xff));
             checkFlush();
         }
 
         @Override
-        public void write(byte[] buf, int off, int len) {
-            buffer.append(new String(buf, off, len));
+        public synchronized void write(byte[] buf, int off, int len) {
+            buffer.append(new String(buf, off, len, StandardCharsets.UTF_8));
             checkFlush();
         }
 
         @Override
-        public void println() {
-            write('\n');
+        public synchronized void println() {
+            buffer.append('\n');
+            checkFlush();
         }
 
         @Override
-        public void println(String x) {
-            print(x);
-            println();
+        public synchronized void println(String x) {
+            buffer.append(x).append('\n');
+            checkFlush();
         }
 
         @Override
-        public void print(String s) {
-            if (s == null) {
-                s = "null";
-            }
-            write(s.getBytes(), 0, s.length());
+        public synchronized void print(String s) {
+            buffer.append(s);
+            checkFlush();
         }
 
         private void checkFlush() {
@@ -119,7 +123,7 @@ public class SoraEditor extends CodeEditor {
         }
 
         @Override
-        public void flush() {
+        public synchronized void flush() {
             if (buffer.length() > 0) {
                 final String text = buffer.toString();
                 editor.post(() -> editor.append(text));
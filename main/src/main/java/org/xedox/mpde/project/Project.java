@@ -1,9 +1,7 @@
 package org.xedox.mpde.project;
 
 import android.content.Context;
-import java.io.FileInputStream;
 import org.xedox.apkbuilder.ApkBuilder;
-import org.xedox.apkbuilder.util.ApkbuilderProperties;
 import org.xedox.utils.ErrorDialog;
 import org.xedox.utils.io.Assets;
 import org.xedox.utils.io.FileX;
@@ -22,6 +20,7 @@ public class Project {
             "/storage/emulated/0/Android/data/org.xedox.mpde/files/android.jar";
 
     public final FileX path, buildConfigPath, dataDir, srcDir, buildDir;
+    private volatile ProjectConfig config;
 
     public Project(FileX path) {
         this.path = path;
@@ -31,8 +30,24 @@ public class Project {
         this.buildDir = new FileX(path, "build");
     }
 
-    public BuildConfig getBuildConfig() {
-        return ApkbuilderProperties.loadFromFile(buildConfigPath.toFile());
+    /** build.properties, parsed again only after the file changed. */
+    public ProjectConfig getConfig() throws IOException {
+        File file = buildConfigPath.toFile();
+        ProjectConfig current = config;
+        if (current == null || !current.isCurrent(file)) {
+            synchronized (this) {
+                current = config;
+                if (current == null || !current.isCurrent(file)) {
+                    current = ProjectConfig.load(file);
+                    config = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    public BuildConfig getBuildConfig() throws IOException {
+        return getConfig().toBuildConfig();
     }
 
     public static BuildConfig create(Context ctx, String path, String name) {
@@ -78,15 +93,11 @@ public class Project {
     }
     
     public String getProperty(String key) throws IOException {
-    	Properties props = new Properties();
-        props.load(new FileInputStream(buildConfigPath.toFile()));
-        return props.getProperty(key);
+        return getConfig().get(key);
     }
     
     public String getProperty(String key, String def) throws IOException {
-    	Properties props = new Properties();
-        props.load(new FileInputStream(buildConfigPath.toFile()));
-        return props.getProperty(key, def);
+        return getConfig().get(key, def);
     }
 
     private static void saveProps(File file, BuildConfig cfg) throws IOException {
@@ -103,6 +114,7 @@ public class Project {
         p.setProperty("buildPath", cfg.buildPath);
         p.setProperty("resDir", cfg.resDir);
         p.setProperty("debugMode", String.valueOf(cfg.debugMode));
+        p.setProperty("incremental", String.valueOf(cfg.incremental));
         p.setProperty("r8enabled", String.valueOf(cfg.r8enabled));
         p.setProperty("apkAlignEnable", String.valueOf(cfg.apkAlignEnable));
         p.setProperty("apkSignEnable", String.valueOf(cfg.apkSignEnable));
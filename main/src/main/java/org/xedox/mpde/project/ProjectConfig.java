@@ -0,0 +1,80 @@
+package org.xedox.mpde.project;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import org.xedox.apkbuilder.ApkBuilder;
+import org.xedox.apkbuilder.util.ApkbuilderProperties;
+
+/**
+ * build.properties of a project as read at one point in time. Never changes after loading, so
+ * a build that holds on to it sees one consistent configuration even if the file is edited
+ * meanwhile. {@link Project#getConfig()} loads a new one when the file's length or modification
+ * time changed.
+ */
+public final class ProjectConfig {
+    private final Properties props;
+    private final long length;
+    private final long lastModified;
+
+    private ProjectConfig(Properties props, long length, long lastModified) {
+        this.props = props;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    public static ProjectConfig load(File file) throws IOException {
+        // Stamp first, so an edit while reading makes the next check reload
+        long length = file.length();
+        long lastModified = file.lastModified();
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        return new ProjectConfig(props, length, lastModified);
+    }
+
+    /** Whether the file still has the length and modification time it had when loaded. */
+    public boolean isCurrent(File file) {
+        return file.length() == length && file.lastModified() == lastModified;
+    }
+
+    public String get(String key) {
+        return props.getProperty(key);
+    }
+
+    public String get(String key, String def) {
+        return props.getProperty(key, def);
+    }
+
+    public String getAppName() {
+        return get("appName", "MPDE App");
+    }
+
+    public String getAppPackage() {
+        return get("appPackage", "com.example.app");
+    }
+
+    public String getVersionCode() {
+        return get("versionCode", "1");
+    }
+
+    public String getVersionName() {
+        return get("versionName", "1.0");
+    }
+
+    public String getMinSdk() {
+        return get("minSdk", "21");
+    }
+
+    public String getTargetSdk() {
+        return get("targetSdk", "33");
+    }
+
+    /** A new build config from these properties, for the caller to fill in further. */
+    public ApkBuilder.BuildConfig toBuildConfig() {
+        return ApkbuilderProperties.load(props);
+    }
+}
@@ -0,0 +1,86 @@
+package org.xedox.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Text with {@code %name%} placeholders, parsed once into literal and placeholder segments.
+ * Rendering is a single pass that appends each segment; placeholders without a value are kept
+ * as they are, so a stray {@code %} in the text is harmless.
+ */
+public final class Template {
+    private final String text;
+    private final String[] literals;
+    private final String[] names;
+    private final int literalLength;
+
+    private Template(String text, String[] literals, String[] names) {
+        this.text = text;
+        this.literals = literals;
+        this.names = names;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    public static Template parse(String text) {
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int literalStart = 0;
+        int i = 0;
+        while (i < text.length()) {
+            if (text.charAt(i) != '%') {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            while (end < text.length() && isNameChar(text.charAt(end))) {
+                end++;
+            }
+            if (end > i + 1 && end < text.length() && text.charAt(end) == '%') {
+                literals.add(text.substring(literalStart, i));
+                names.add(text.substring(i + 1, end));
+                literalStart = end + 1;
+                i = end + 1;
+            } else {
+                // Not a placeholder, the next % may open one
+                i = end;
+            }
+        }
+        literals.add(text.substring(literalStart));
+        return new Template(text, literals.toArray(new String[0]), names.toArray(new String[0]));
+    }
+
+    /** The text the template was parsed from. */
+    public String getText() {
+        return text;
+    }
+
+    public String render(Map<String, String> values) {
+        StringBuilder out = new StringBuilder(literalLength + names.length * 16);
+        render(values, out);
+        return out.toString();
+    }
+
+    /** Appends the rendered text to {@code out}, which the caller may reuse between renders. */
+    public void render(Map<String, String> values, StringBuilder out) {
+        for (int i = 0; i < names.length; i++) {
+            out.append(literals[i]);
+            String value = values.get(names[i]);
+            if (value != null) {
+                out.append(value);
+            } else {
+                out.append('%').append(names[i]).append('%');
+            }
+        }
+        out.append(literals[names.length]);
+    }
+
+    private static boolean isNameChar(char c) {
+        return c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9');
+    }
+}
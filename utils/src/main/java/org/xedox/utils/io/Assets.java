@@ -6,10 +6,15 @@ import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipException;
 import net.lingala.zip4j.ZipFile;
+import org.xedox.utils.Template;
 
 public final class Assets {
+    // Assets are part of the APK and never change while the app runs
+    private static final Map<String, Template> templates = new ConcurrentHashMap<>();
+
     private final Context context;
     private final AssetManager assetManager;
 
@@ -80,6 +85,16 @@ public final class Assets {
         return readText(assetPath, StandardCharsets.UTF_8);
     }
 
+    /** The asset parsed as a {@link Template}, read only the first time it is asked for. */
+    public Template readTemplate(String assetPath) throws IOException {
+        Template template = templates.get(assetPath);
+        if (template == null) {
+            template = Template.parse(readText(assetPath));
+            templates.put(assetPath, template);
+        }
+        return template;
+    }
+
     public void copyFile(String assetPath, File destination) throws IOException {
         copyFile(assetPath, destination, true);
     }
@@ -1,6 +1,7 @@
 package org.xedox.utils.io;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.util.*;
 import java.util.zip.*;
@@ -71,6 +72,20 @@ public class FileX extends File {
         }
     }
 
+    /**
+     * Writes the text only if the file does not already hold exactly it, so an unchanged file
+     * keeps its modification time and incremental steps that read it stay up to date.
+     *
+     * @return whether the file was written
+     */
+    public boolean writeIfChanged(String text) throws IOException {
+        byte[] data = text.getBytes(Charset.defaultCharset());
+        if (isFile() && length() == data.length && Arrays.equals(readBytes(), data)) {
+            return false;
+        }
+        return write(data);
+    }
+
     public boolean write(byte[] data) throws IOException {
         try (FileOutputStream out = new FileOutputStream(this)) {
             out.write(data);